@@ -10,7 +10,7 @@
  * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
  */
 
-package edu.cmu.cs.dvids.scraper.image;
+package edu.cmu.cs.dvids.scraper.download;
 
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import org.immutables.value.Value;
@@ -0,0 +1,198 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded multi-producer, multi-consumer queue that hands items over in batches. Producers fill a partial batch in
+ * one of a few stripes, picked by thread, so a put only takes the shared lock when it completes a batch. Consumers
+ * are woken when a full batch is published; a consumer that has waited longer than the linger time takes a partial
+ * batch from a stripe instead. {@link #close()} publishes what is left and marks the end of the stream, after which
+ * {@link #take()} drains the remaining batches and then returns an empty batch.
+ *
+ * <p>Time spent blocked on either side is recorded so that it is visible whether producers or consumers are the
+ * bottleneck.
+ */
+final class BatchQueue<T> {
+
+    private static final int STRIPES = 8;
+
+    private final int batchSize;
+    private final int capacity;
+    private final long lingerNanos;
+    private final Timer producerWait;
+    private final Timer consumerWait;
+    private final List<Stripe<T>> stripes = new ArrayList<>(STRIPES);
+
+    // Items added but not yet taken, including partial batches still held by a stripe
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // Guarded by lock
+    private final Deque<List<T>> batches = new ArrayDeque<>();
+
+    /**
+     * Creates a queue holding at most {@code capacity} published batches of {@code batchSize} items, whose consumers
+     * take a partial batch after waiting {@code linger} for a full one.
+     */
+    BatchQueue(int batchSize, int capacity, Duration linger, Timer producerWait, Timer consumerWait) {
+        Preconditions.checkArgument(batchSize > 0 && capacity > 0, "Batch size and capacity must be positive");
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.lingerNanos = linger.toNanos();
+        this.producerWait = producerWait;
+        this.consumerWait = consumerWait;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new Stripe<>(batchSize));
+        }
+    }
+
+    /** Adds an item, blocking while the queue is full. */
+    void put(T item) throws InterruptedException {
+        Stripe<T> stripe = stripes.get((int) (Thread.currentThread().getId() % STRIPES));
+        List<T> full;
+        synchronized (stripe) {
+            // Checked under the stripe lock so that close() either sees the item or the put fails
+            Preconditions.checkState(!closed, "Queue has been closed");
+            stripe.items.add(item);
+            size.incrementAndGet();
+            if (stripe.items.size() < batchSize) {
+                return;
+            }
+            full = stripe.drain(batchSize);
+        }
+
+        long startNanos = System.nanoTime();
+        lock.lock();
+        try {
+            while (batches.size() >= capacity) {
+                notFull.await();
+            }
+        } finally {
+            // The items are already counted, so the batch is published even if the wait was interrupted
+            publish(full);
+            lock.unlock();
+            producerWait.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Takes the next batch, blocking until a full one is available or the linger time has passed with a partial one
+     * available. Returns an empty batch once the queue has been closed and fully drained.
+     */
+    List<T> take() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        long lingerDeadline = startNanos + lingerNanos;
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                List<T> batch = batches.poll();
+                if (batch == null && System.nanoTime() - lingerDeadline >= 0) {
+                    batch = takePartial();
+                    lingerDeadline = System.nanoTime() + lingerNanos;
+                }
+
+                if (batch != null) {
+                    size.addAndGet(-batch.size());
+                    notFull.signal();
+                    return batch;
+                }
+
+                if (closed && size.get() == 0) {
+                    // Wake the other consumers so they see the end of the stream too
+                    notEmpty.signalAll();
+                    return Collections.emptyList();
+                }
+
+                notEmpty.awaitNanos(lingerDeadline - System.nanoTime());
+            }
+        } finally {
+            lock.unlock();
+            consumerWait.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Signals that no more items will be added, publishing any partial batches. */
+    void close() {
+        closed = true;
+
+        lock.lock();
+        try {
+            // May exceed the capacity by the partial batches, so that closing never blocks
+            for (Stripe<T> stripe : stripes) {
+                List<T> batch = stripe.drainAll(batchSize);
+                if (!batch.isEmpty()) {
+                    batches.add(batch);
+                }
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of items added but not yet taken. */
+    int size() {
+        return size.get();
+    }
+
+    private void publish(List<T> batch) {
+        batches.add(batch);
+        notEmpty.signal();
+    }
+
+    private List<T> takePartial() {
+        for (Stripe<T> stripe : stripes) {
+            List<T> batch = stripe.drainAll(batchSize);
+            if (!batch.isEmpty()) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    private static final class Stripe<T> {
+        // Guarded by this stripe
+        private List<T> items;
+
+        private Stripe(int batchSize) {
+            this.items = new ArrayList<>(batchSize);
+        }
+
+        private List<T> drain(int batchSize) {
+            List<T> batch = items;
+            items = new ArrayList<>(batchSize);
+            return batch;
+        }
+
+        private synchronized List<T> drainAll(int batchSize) {
+            return items.isEmpty() ? Collections.emptyList() : drain(batchSize);
+        }
+    }
+}
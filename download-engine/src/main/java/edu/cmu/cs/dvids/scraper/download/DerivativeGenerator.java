@@ -0,0 +1,185 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes downscaled copies of downloaded images to {@code <derivativeDir>/<size>/<hash>/<id>.jpg}, where each size is
+ * the longest edge in pixels. The work runs on its own CPU-bound pool so that download workers go straight back to
+ * the network, and a bounded backlog blocks them once the pool falls behind. Each image is decoded once, using JPEG
+ * source subsampling so that only as many pixels as the largest size needs are decoded, and the smaller sizes are
+ * scaled from the next larger one.
+ */
+final class DerivativeGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(DerivativeGenerator.class);
+
+    private final Path derivativeDir;
+    private final List<Integer> sizes;
+    private final ExecutorService derivativeService;
+    private final int maxBacklog;
+    private final Semaphore backlog;
+    private final Timer timer;
+
+    DerivativeGenerator(
+            Path derivativeDir,
+            List<Integer> sizes,
+            ExecutorService derivativeService,
+            int maxBacklog,
+            Timer timer) {
+        Preconditions.checkArgument(!sizes.isEmpty(), "No derivative sizes configured");
+        Preconditions.checkArgument(sizes.stream().allMatch(size -> size > 0), "Derivative sizes must be positive");
+        this.derivativeDir = derivativeDir;
+        this.sizes = sizes.stream().distinct().sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        this.derivativeService = derivativeService;
+        this.maxBacklog = maxBacklog;
+        this.backlog = new Semaphore(maxBacklog);
+        this.timer = timer;
+    }
+
+    /**
+     * Queues derivatives of the image at {@code imagePath}, blocking while the backlog is full. This throttles
+     * downloads to the rate derivatives can be produced without the caller ever doing the CPU-bound work itself.
+     */
+    void submit(String imageId, String hashPrefix, Path imagePath) {
+        try {
+            backlog.acquire();
+        } catch (InterruptedException e) {
+            // Only happens while shutting down, when the caller's next take from the id queue stops it
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while queueing derivatives of image {}, skipping", imageId);
+            return;
+        }
+
+        try {
+            derivativeService.execute(() -> {
+                try (Timer.Context ignored = timer.time()) {
+                    generate(imageId, hashPrefix, imagePath);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Failed to generate derivatives of image {} from {}", imageId, imagePath, e);
+                } finally {
+                    backlog.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            backlog.release();
+            throw e;
+        }
+    }
+
+    /** Number of images queued or being processed. */
+    int backlog() {
+        return maxBacklog - backlog.availablePermits();
+    }
+
+    /** Waits for queued derivatives; no more may be submitted afterwards. */
+    void awaitTermination() throws InterruptedException {
+        derivativeService.shutdown();
+        derivativeService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private void generate(String imageId, String hashPrefix, Path imagePath) throws IOException {
+        if (sizes.stream().allMatch(size -> Files.exists(outputPath(size, hashPrefix, imageId)))) {
+            return;
+        }
+
+        BufferedImage scaled = decodeSubsampled(imagePath, sizes.get(0));
+        for (int size : sizes) {
+            scaled = scale(scaled, size);
+
+            Path outputPath = outputPath(size, hashPrefix, imageId);
+            Path tmpPath = outputPath.resolveSibling(imageId + ".tmp.jpg");
+            Files.createDirectories(outputPath.getParent());
+            try {
+                if (!ImageIO.write(scaled, "jpg", tmpPath.toFile())) {
+                    throw new IOException("No jpeg writer available");
+                }
+                Files.move(tmpPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+        }
+    }
+
+    private Path outputPath(int size, String hashPrefix, String imageId) {
+        return derivativeDir.resolve(Integer.toString(size)).resolve(hashPrefix).resolve(imageId + ".jpg");
+    }
+
+    /** Decodes every n-th pixel, for the largest n that still leaves the longest edge at least {@code minSize}. */
+    private static BufferedImage decodeSubsampled(Path imagePath, int minSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imagePath.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader could decode " + imagePath);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longestEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longestEdge / minSize);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Scales the image down so its longest edge is {@code size}; images that already fit are only converted. */
+    private static BufferedImage scale(BufferedImage image, int size) {
+        double ratio = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        if (ratio == 1.0 && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+
+        // The jpeg writer cannot encode every decoded type (e.g. with alpha), so always draw into plain RGB
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import com.codahale.metrics.Gauge;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import edu.cmu.cs.dvids.scraper.common.AdaptiveLimiter;
+import edu.cmu.cs.dvids.scraper.common.ApiClient;
+import edu.cmu.cs.dvids.scraper.common.RequestTracer;
+import edu.cmu.cs.dvids.scraper.common.ResponseArchive;
+import edu.cmu.cs.dvids.scraper.download.config.DownloadConfig;
+import io.dropwizard.setup.Environment;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.apache.commons.csv.CSVRecord;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of download workers fed through a bounded queue. Producers {@link #submit} image ids as they become known
+ * (from a metadata split or straight from a running crawl), call {@link #finish()} once there are no more, and then
+ * {@link #awaitTermination()}.
+ */
+public final class DownloadEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadEngine.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new Jdk8Module())
+            .registerModule(new GuavaModule());
+
+    private static final String ASSET_URL = "https://api.dvidshub.net/asset";
+    private static final String CDN_URL = "https://cdn.dvidshub.net/media/photos";
+    private static final String ID_PREFIX = "image:";
+    private static final int TRANSFER_STATS_WINDOW = 1000;
+    private static final String ASSET_ARCHIVE = "assets.responses.gz";
+    private static final int BATCH_SIZE = 10;
+    private static final int QUEUE_CAPACITY = 10000;
+    // How long an idle worker waits for a full batch before taking a partial one
+    private static final Duration BATCH_LINGER = Duration.ofMillis(100);
+    private static final String TRACE_NAME = "download";
+    private static final String ASSET_ENDPOINT = "asset";
+    private static final String INSPECT_ENDPOINT = "disk-inspect";
+    private static final String MOVE_ENDPOINT = "disk-move";
+
+    private final ApiClient assetClient;
+    private final String apiKey;
+    private final Path outputDir;
+    private final HedgedFetcher fetcher;
+    private final Optional<DerivativeGenerator> derivatives;
+    private final Optional<ResponseArchive> assetArchive;
+    private final RequestTracer tracer;
+    private final BatchQueue<DownloadMetadata> idQueue;
+    private final List<ListenableFuture<?>> downloadThreads;
+
+    private DownloadEngine(DownloadConfig config, String apiKey, Environment environment) {
+        this.apiKey = apiKey;
+        this.outputDir = Paths.get(config.outputDir());
+        outputDir.toFile().mkdir();
+        this.assetArchive = config.archiveDir().map(DownloadEngine::openAssetArchive);
+        this.tracer = config.traceDir()
+                .map(traceDir -> openTracer(traceDir, config.traceSampleRate()))
+                .orElseGet(RequestTracer::disabled);
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectTimeout(Duration.ofMinutes(5))
+                .readTimeout(Duration.ofMinutes(5))
+                .writeTimeout(Duration.ofMinutes(5))
+                .build();
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(
+                config.minConcurrency(), config.initialConcurrency(), config.maxConcurrency());
+        environment.metrics().register("downloader.concurrency-limit", (Gauge<Integer>) limiter::limit);
+        environment.metrics().register("downloader.in-flight", (Gauge<Integer>) limiter::inFlight);
+
+        // The asset api is a different service from the CDN, so its 429s and errors only throttle asset lookups
+        AdaptiveLimiter assetLimiter = new AdaptiveLimiter(
+                config.minConcurrency(), config.initialConcurrency(), config.maxConcurrency());
+        environment.metrics().register("downloader.asset.concurrency-limit", (Gauge<Integer>) assetLimiter::limit);
+        environment.metrics().register("downloader.asset.in-flight", (Gauge<Integer>) assetLimiter::inFlight);
+        this.assetClient = new ApiClient(client, assetLimiter, tracer, ASSET_ENDPOINT);
+
+        this.idQueue = new BatchQueue<>(
+                BATCH_SIZE,
+                QUEUE_CAPACITY / BATCH_SIZE,
+                BATCH_LINGER,
+                environment.metrics().timer("downloader.queue.producer-wait"),
+                environment.metrics().timer("downloader.queue.consumer-wait"));
+        environment.metrics().register("downloader.queue.size", (Gauge<Integer>) idQueue::size);
+
+        // Enough workers to reach the maximum limit; the limiter decides how many are active at a time
+        int threads = config.maxConcurrency();
+        ListeningExecutorService downloaderService = MoreExecutors.listeningDecorator(environment.lifecycle()
+                .executorService("downloader-%d")
+                .minThreads(threads)
+                .maxThreads(threads)
+                .build());
+
+        // Each downloader has at most a primary and a hedged transfer in flight
+        ExecutorService transferService = environment.lifecycle()
+                .executorService("transfer-%d")
+                .minThreads(2 * threads)
+                .maxThreads(2 * threads)
+                .build();
+
+        this.fetcher = new HedgedFetcher(
+                client,
+                transferService,
+                limiter,
+                new TransferStats(TRANSFER_STATS_WINDOW, config.hedgeMinSamples()),
+                tracer,
+                config.hedgePercentile(),
+                config.stallMinBytesPerSecond(),
+                Duration.ofNanos(config.stallWindow().toNanoseconds()));
+
+        this.derivatives = config.derivativeDir()
+                .filter(dir -> !config.derivativeSizes().isEmpty())
+                .map(dir -> createDerivativeGenerator(Paths.get(dir), config, environment));
+
+        this.downloadThreads = IntStream.range(0, threads)
+                .mapToObj(i -> downloaderService.submit(() -> runDownloader(i)))
+                .collect(Collectors.toList());
+    }
+
+    public static DownloadEngine start(DownloadConfig config, String apiKey, Environment environment) {
+        return new DownloadEngine(config, apiKey, environment);
+    }
+
+    /** Queues a row of a metadata csv, as written by the metadata scraper. */
+    public void submit(CSVRecord record) throws InterruptedException {
+        submit(record.get(0), Integer.parseInt(record.get(10)), (int) Double.parseDouble(record.get(21)),
+                record.get(16));
+    }
+
+    /**
+     * Queues an image for download, blocking while the queue is full. The CDN url is derived from the thumbnail url
+     * when possible, otherwise a download worker looks it up through the asset api, so that a failed lookup only
+     * affects that image and never the caller.
+     */
+    public void submit(String id, int height, int width, @Nullable String thumbnail) throws InterruptedException {
+        Preconditions.checkArgument(id.startsWith(ID_PREFIX), "Unexpected id %s", id);
+        String imageId = id.substring(ID_PREFIX.length());
+
+        if (thumbnail != null && thumbnail.endsWith(".jpg")) {
+            List<String> splits = Splitter.on("/").splitToList(thumbnail);
+            idQueue.put(new DownloadMetadata(
+                    imageId,
+                    height,
+                    width,
+                    String.format(
+                            "%s/%s/%s.jpg",
+                            CDN_URL,
+                            splits.get(splits.size() - 3),
+                            splits.get(splits.size() - 2))));
+        } else {
+            idQueue.put(new DownloadMetadata(imageId, height, width, null));
+        }
+    }
+
+    /** Signals that no more images will be submitted. */
+    public void finish() {
+        idQueue.close();
+    }
+
+    public void awaitTermination() throws InterruptedException, ExecutionException, IOException {
+        Futures.allAsList(downloadThreads).get();
+        if (derivatives.isPresent()) {
+            derivatives.get().awaitTermination();
+        }
+
+        if (assetArchive.isPresent()) {
+            assetArchive.get().close();
+        }
+        tracer.close();
+    }
+
+    private static ResponseArchive openAssetArchive(String archiveDir) {
+        Path archivePath = Paths.get(archiveDir);
+        archivePath.toFile().mkdirs();
+        try {
+            return ResponseArchive.open(archivePath.resolve(ASSET_ARCHIVE));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open asset response archive in " + archiveDir, e);
+        }
+    }
+
+    private static DerivativeGenerator createDerivativeGenerator(
+            Path derivativeDir, DownloadConfig config, Environment environment) {
+        // Scaling is CPU-bound, so this pool is sized by cores rather than by download concurrency. The backlog is
+        // kept short, so that download workers wait rather than fetch images faster than they can be scaled.
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService derivativeService = environment.lifecycle()
+                .executorService("derivative-%d")
+                .minThreads(cores)
+                .maxThreads(cores)
+                .build();
+
+        DerivativeGenerator generator = new DerivativeGenerator(
+                derivativeDir,
+                config.derivativeSizes(),
+                derivativeService,
+                3 * cores,
+                environment.metrics().timer("downloader.derivatives"));
+        environment.metrics().register("downloader.derivatives.backlog", (Gauge<Integer>) generator::backlog);
+        return generator;
+    }
+
+    private static RequestTracer openTracer(String traceDir, double sampleRate) {
+        try {
+            return RequestTracer.open(Paths.get(traceDir), TRACE_NAME, sampleRate);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open request trace in " + traceDir, e);
+        }
+    }
+
+    private void runDownloader(int index) {
+        try {
+            while (true) {
+                List<DownloadMetadata> imageIds = idQueue.take();
+                if (imageIds.isEmpty()) {
+                    // End of stream
+                    break;
+                }
+
+                for (DownloadMetadata imageId : imageIds) {
+                    try {
+                        downloadImage(imageId.url != null ? imageId : getMetadataFromAsset(imageId.imageId), 1);
+                    } catch (RuntimeException e) {
+                        log.error("Giving up on image {}", imageId.imageId, e);
+                    }
+                }
+            }
+        } catch (RuntimeException | Error | InterruptedException e) {
+            log.error("Downloader {} failed", index, e);
+        }
+    }
+
+    private DownloadMetadata getMetadataFromAsset(String imageId) {
+        HttpUrl url = HttpUrl.parse(ASSET_URL).newBuilder()
+                .addQueryParameter("api_key", apiKey)
+                .addQueryParameter("id", ID_PREFIX + imageId)
+                .build();
+        AssetResult assetResult = getAssetResult(url, imageId);
+
+        String imageUrl = assetResult.image();
+        if (!imageUrl.endsWith(imageId + ".jpg")) {
+            throw new RuntimeException(String.format("Unexpected image url %s for image id %s",
+                    imageUrl, imageId));
+        }
+
+        return new DownloadMetadata(
+                imageId,
+                Integer.parseInt(assetResult.dimensions().height()),
+                Integer.parseInt(assetResult.dimensions().width()),
+                assetResult.image());
+    }
+
+    private void downloadImage(DownloadMetadata metadata, int attempt) {
+        String idHashSubstr = Hashing.sha256()
+                .hashString(metadata.imageId, StandardCharsets.UTF_8)
+                .toString().substring(0, 2);
+
+        Path outputSubDir = outputDir.resolve(idHashSubstr);
+
+        outputSubDir.toFile().mkdir();
+        Path imageTmpPath = outputSubDir.resolve(metadata.imageId + ".tmp.jpg");
+        Path hedgeTmpPath = outputSubDir.resolve(metadata.imageId + ".hedge.tmp.jpg");
+
+        try {
+            Path imagePath = outputSubDir.resolve(metadata.imageId + ".jpg");
+            if (imagePath.toFile().exists()) {
+                log.debug("Path {} already exists - skipping", imagePath);
+                // Lets a rerun backfill derivatives of an existing corpus; existing derivatives are skipped too
+                derivatives.ifPresent(d -> d.submit(metadata.imageId, idHashSubstr, imagePath));
+                return;
+            }
+
+            Path fetchedPath = fetcher.fetch(HttpUrl.parse(metadata.url), imageTmpPath, hedgeTmpPath, attempt);
+            long fetchedBytes = Files.size(fetchedPath);
+
+            // Only the markers are read; the derivative pool, if any, is the only place the pixels are decoded
+            JpegInspector.FrameHeader header;
+            long inspectStartNanos = System.nanoTime();
+            try {
+                header = JpegInspector.inspect(fetchedPath);
+                tracer.record(INSPECT_ENDPOINT, RequestTracer.NO_STATUS, fetchedBytes,
+                        System.nanoTime() - inspectStartNanos, attempt, false);
+            } catch (IOException | RuntimeException e) {
+                tracer.record(INSPECT_ENDPOINT, RequestTracer.NO_STATUS, fetchedBytes,
+                        System.nanoTime() - inspectStartNanos, attempt, true);
+                fetchedPath.toFile().delete();
+                throw e;
+            }
+
+            int width = header.width();
+            int height = header.height();
+
+            if (width != metadata.width || height != metadata.height) {
+                log.warn("Downloaded image dimensions differ from published metadata (expected: {}x{}, got: {}x{}",
+                        metadata.height, metadata.width, height, width);
+            }
+
+            Preconditions.checkArgument(width == metadata.width, "Unexpected image width (expected: %s, got: %s)",
+                    metadata.width, width);
+
+            Preconditions.checkArgument(
+                    height == metadata.height,
+                    "Unexpected image height (expected: %s, got: %s)",
+                    metadata.height, height);
+
+            long moveStartNanos = System.nanoTime();
+            Files.move(fetchedPath, imagePath, StandardCopyOption.ATOMIC_MOVE);
+            tracer.record(MOVE_ENDPOINT, RequestTracer.NO_STATUS, fetchedBytes, System.nanoTime() - moveStartNanos,
+                    attempt, false);
+
+            derivatives.ifPresent(d -> d.submit(metadata.imageId, idHashSubstr, imagePath));
+        } catch (RuntimeException | IOException | Error e) {
+            if (attempt < 3) {
+                log.error("Failed to download image {} to tmp path {} and url {}. Retrying...",
+                        metadata.imageId, imageTmpPath, metadata.url, e);
+                downloadImage(metadata, attempt + 1);
+            } else {
+                throw new RuntimeException(String.format("Failed to download image %s to tmp path %s and url %s",
+                        metadata.imageId, imageTmpPath, metadata.url), e);
+            }
+        }
+    }
+
+    private AssetResult getAssetResult(HttpUrl url, String imageId) {
+        ApiClient.ParsedResponse<AssetResult> response = assetClient.get(url, this::parseAssetResult);
+
+        // Failing to archive the body says nothing about the api, so it is neither retried nor traced as a failure
+        if (assetArchive.isPresent()) {
+            try {
+                assetArchive.get().append("asset/" + imageId, response.body());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to archive asset response for image " + imageId, e);
+            }
+        }
+        return response.result();
+    }
+
+    private AssetResult parseAssetResult(String responseString) {
+        try {
+            return MAPPER.readValue(responseString, AssetResponse.class).results();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse response: " + responseString, e);
+        }
+    }
+
+    private static final class DownloadMetadata {
+        private final String imageId;
+        private final int height;
+        private final int width;
+        // Null until looked up through the asset api
+        @Nullable
+        private final String url;
+
+        private DownloadMetadata(String imageId, int height, int width, @Nullable String url) {
+            this.imageId = imageId;
+            this.height = height;
+            this.width = width;
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import edu.cmu.cs.dvids.scraper.common.AdaptiveLimiter;
+import edu.cmu.cs.dvids.scraper.common.RequestTracer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a url to disk, issuing a duplicate (hedged) request once the transfer runs past a percentile of recently
+ * observed transfer times and aborting transfers whose byte rate drops below a floor. Whichever copy finishes first
+ * wins; the other is cancelled. Every transfer, hedges included, holds a permit from the {@link AdaptiveLimiter} for
+ * exactly as long as it is on the network.
+ */
+final class HedgedFetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(HedgedFetcher.class);
+
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(250);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PRIMARY_ENDPOINT = "cdn";
+    private static final String HEDGE_ENDPOINT = "cdn-hedge";
+
+    private final OkHttpClient client;
+    private final ExecutorService transferService;
+    private final AdaptiveLimiter limiter;
+    private final TransferStats stats;
+    private final RequestTracer tracer;
+    private final double hedgePercentile;
+    private final long stallMinBytesPerSecond;
+    private final Duration stallWindow;
+
+    HedgedFetcher(
+            OkHttpClient client,
+            ExecutorService transferService,
+            AdaptiveLimiter limiter,
+            TransferStats stats,
+            RequestTracer tracer,
+            double hedgePercentile,
+            long stallMinBytesPerSecond,
+            Duration stallWindow) {
+        this.client = client;
+        this.transferService = transferService;
+        this.limiter = limiter;
+        this.stats = stats;
+        this.tracer = tracer;
+        this.hedgePercentile = hedgePercentile;
+        this.stallMinBytesPerSecond = stallMinBytesPerSecond;
+        this.stallWindow = stallWindow;
+    }
+
+    /**
+     * Fetches the url, writing the primary transfer to {@code tmpPath} and a hedged transfer (if one is needed) to
+     * {@code hedgeTmpPath}. Returns the path holding the completed download. {@code attempt} is only used for tracing.
+     */
+    Path fetch(HttpUrl url, Path tmpPath, Path hedgeTmpPath, int attempt) throws IOException {
+        Fetch fetch = new Fetch(url, stats.percentile(hedgePercentile), attempt);
+        fetch.start(fetch.acquire(), tmpPath, PRIMARY_ENDPOINT);
+
+        try {
+            while (true) {
+                Future<Transfer> completed = fetch.await();
+                if (completed != null) {
+                    Optional<Path> path = fetch.collect(completed);
+                    if (path.isPresent()) {
+                        return path.get();
+                    }
+
+                    // Nothing left in flight, so the failure goes back to the caller's retry rather than to a hedge
+                    if (fetch.pending == 0) {
+                        throw fetch.failure;
+                    }
+                }
+
+                fetch.checkProgress(hedgeTmpPath);
+            }
+        } finally {
+            fetch.cancelLosers();
+        }
+    }
+
+    /** State of a single call to {@link #fetch}; only accessed by the calling thread. */
+    private final class Fetch {
+        private final HttpUrl url;
+        private final Optional<Duration> hedgeDelay;
+        private final int attempt;
+        private final CompletionService<Transfer> completionService =
+                new ExecutorCompletionService<>(transferService);
+        private final List<Transfer> transfers = new ArrayList<>(2);
+
+        // Set once the primary has its permit, so that time queued on the limiter is not counted as transfer time
+        private long startNanos;
+        private int pending = 0;
+        private Transfer winner = null;
+        private IOException failure = null;
+
+        private Fetch(HttpUrl url, Optional<Duration> hedgeDelay, int attempt) {
+            this.url = url;
+            this.hedgeDelay = hedgeDelay;
+            this.attempt = attempt;
+        }
+
+        private AdaptiveLimiter.Permit acquire() throws InterruptedIOException {
+            try {
+                return limiter.acquire();
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+
+        private void start(AdaptiveLimiter.Permit permit, Path path, String endpoint) {
+            Transfer transfer = new Transfer(client.newCall(new Request.Builder().url(url).build()), permit, path,
+                    endpoint, attempt);
+            if (transfers.isEmpty()) {
+                startNanos = System.nanoTime();
+            }
+            transfer.future = completionService.submit(transfer);
+            transfers.add(transfer);
+            pending++;
+        }
+
+        /** Waits up to the poll interval for a transfer to complete, returning null if none did. */
+        private Future<Transfer> await() throws InterruptedIOException {
+            try {
+                return completionService.poll(POLL_INTERVAL.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+
+        private InterruptedIOException interrupted(InterruptedException cause) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while fetching " + url);
+            interrupted.initCause(cause);
+            return interrupted;
+        }
+
+        /** Returns the completed transfer's path if it succeeded, otherwise records its failure. */
+        private Optional<Path> collect(Future<Transfer> completed) throws InterruptedIOException {
+            pending--;
+            try {
+                winner = completed.get();
+                winner.permit.onSuccess();
+                stats.record(Duration.ofNanos(System.nanoTime() - startNanos));
+                return Optional.of(winner.path);
+            } catch (ExecutionException e) {
+                transfers.stream()
+                        .filter(transfer -> transfer.future == completed)
+                        .forEach(transfer -> transfer.permit.onDropped());
+
+                IOException cause = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Transfer failed for url " + url, e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+                return Optional.empty();
+            } catch (InterruptedException e) {
+                // The future has already completed, so this cannot block
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while collecting transfer of " + url);
+            }
+        }
+
+        /** Aborts stalled transfers and starts the hedge once the primary is slow or stalled. */
+        private void checkProgress(Path hedgeTmpPath) {
+            long nowNanos = System.nanoTime();
+            boolean stalled = false;
+            for (Transfer transfer : transfers) {
+                if (!transfer.call.isCanceled() && transfer.isStalled(nowNanos)) {
+                    log.warn("Transfer of {} to {} stalled below {} bytes/s, aborting",
+                            url, transfer.path, stallMinBytesPerSecond);
+                    transfer.call.cancel();
+                    transfer.permit.onDropped();
+                    stalled = true;
+                }
+            }
+
+            boolean slow = hedgeDelay.isPresent() && nowNanos - startNanos > hedgeDelay.get().toNanos();
+            if (transfers.size() != 1 || !(stalled || slow)) {
+                return;
+            }
+
+            // A hedge is extra load, so it only goes out while the limit has room; otherwise it is retried on the
+            // next poll
+            Optional<AdaptiveLimiter.Permit> permit = limiter.tryAcquire();
+            if (permit.isPresent()) {
+                log.info("Hedging transfer of {} after {} ms", url,
+                        TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos));
+                start(permit.get(), hedgeTmpPath, HEDGE_ENDPOINT);
+            }
+        }
+
+        private void cancelLosers() {
+            for (Transfer transfer : transfers) {
+                // Releases without a sample if the permit was not already used to report the outcome
+                transfer.permit.close();
+                if (transfer != winner) {
+                    transfer.call.cancel();
+                    transfer.path.toFile().delete();
+                }
+            }
+        }
+    }
+
+    private final class Transfer implements Callable<Transfer> {
+        private final Call call;
+        private final AdaptiveLimiter.Permit permit;
+        private final Path path;
+        private final String endpoint;
+        private final int attempt;
+        private final AtomicLong bytes = new AtomicLong();
+
+        // Only accessed by the thread coordinating the fetch
+        private long windowStartNanos = System.nanoTime();
+        private long windowStartBytes = 0;
+        private Future<Transfer> future;
+
+        private Transfer(Call call, AdaptiveLimiter.Permit permit, Path path, String endpoint, int attempt) {
+            this.call = call;
+            this.permit = permit;
+            this.path = path;
+            this.endpoint = endpoint;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public Transfer call() throws IOException {
+            long startNanos = System.nanoTime();
+            int status = RequestTracer.NO_STATUS;
+            try (Response response = call.execute()) {
+                status = response.code();
+                if (!response.isSuccessful()) {
+                    throw new IOException(String.format("Unexpected response code %s for url %s",
+                            response.code(), call.request().url()));
+                }
+
+                Files.deleteIfExists(path);
+                try (InputStream in = response.body().byteStream();
+                        OutputStream out = Files.newOutputStream(path)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        bytes.addAndGet(read);
+                    }
+                }
+
+                tracer.record(endpoint, status, bytes.get(), System.nanoTime() - startNanos, attempt, false);
+                return this;
+            } catch (IOException | RuntimeException e) {
+                // Losing and stalled transfers are cancelled on purpose and are not failures of the endpoint
+                if (!call.isCanceled()) {
+                    tracer.record(endpoint, status, bytes.get(), System.nanoTime() - startNanos, attempt, true);
+                }
+                path.toFile().delete();
+                throw e;
+            }
+        }
+
+        private boolean isStalled(long nowNanos) {
+            long elapsedNanos = nowNanos - windowStartNanos;
+            if (elapsedNanos < stallWindow.toNanos()) {
+                return false;
+            }
+
+            long currentBytes = bytes.get();
+            long transferred = currentBytes - windowStartBytes;
+            windowStartNanos = nowNanos;
+            windowStartBytes = currentBytes;
+
+            return transferred * TimeUnit.SECONDS.toNanos(1) / elapsedNanos < stallMinBytesPerSecond;
+        }
+    }
+}
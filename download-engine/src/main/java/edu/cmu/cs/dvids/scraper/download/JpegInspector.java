@@ -0,0 +1,176 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checks the structure of a JPEG without decoding it: the SOI marker at the start, an EOI marker at the end, and the
+ * frame dimensions from the first SOF segment. Only the marker segments before the scan data and the file's tail are
+ * read, so the download workers and the scrubber can check images without paying for a decode.
+ */
+public final class JpegInspector {
+
+    private static final int MARKER = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int TEM = 0x01;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+
+    // Some encoders pad after the EOI marker
+    private static final int TAIL_SEARCH_BYTES = 64;
+    private static final int HEADER_BUFFER_BYTES = 8 * 1024;
+
+    private JpegInspector() {
+    }
+
+    /** Returns the frame header of a structurally valid JPEG, or throws describing why it is not one. */
+    public static FrameHeader inspect(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4) {
+                throw new IOException("File too small to be a jpeg: " + size + " bytes");
+            }
+
+            checkEndOfImage(channel, size);
+
+            channel.position(0);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), HEADER_BUFFER_BYTES));
+            if (in.readUnsignedByte() != MARKER || in.readUnsignedByte() != SOI) {
+                throw new IOException("Missing SOI marker");
+            }
+
+            try {
+                return readFrameHeader(in);
+            } catch (EOFException e) {
+                throw new IOException("Truncated before frame header", e);
+            }
+        }
+    }
+
+    private static void checkEndOfImage(FileChannel channel, long size) throws IOException {
+        int tailSize = (int) Math.min(size, TAIL_SEARCH_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize);
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, size - tailSize + tail.position()) < 0) {
+                throw new EOFException("File shrank while being inspected");
+            }
+        }
+
+        for (int i = tailSize - 2; i >= 0; i--) {
+            if ((tail.get(i) & 0xFF) == MARKER && (tail.get(i + 1) & 0xFF) == EOI) {
+                return;
+            }
+        }
+
+        throw new IOException("Missing EOI marker");
+    }
+
+    private static FrameHeader readFrameHeader(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = readMarker(in);
+            if (isStandalone(marker)) {
+                continue;
+            }
+
+            if (marker == SOS || marker == EOI) {
+                throw new IOException(String.format("Found marker 0x%02X before frame header", marker));
+            }
+
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                throw new IOException(String.format("Invalid length %s for marker 0x%02X", length, marker));
+            }
+
+            if (isStartOfFrame(marker)) {
+                return readFrameDimensions(in);
+            }
+
+            skipFully(in, length - 2);
+        }
+    }
+
+    private static int readMarker(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != MARKER) {
+            throw new IOException("Expected marker before frame header");
+        }
+
+        // Any number of fill bytes may precede the marker code
+        int marker = in.readUnsignedByte();
+        while (marker == MARKER) {
+            marker = in.readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private static FrameHeader readFrameDimensions(DataInputStream in) throws IOException {
+        in.readUnsignedByte(); // sample precision
+        int height = in.readUnsignedShort();
+        int width = in.readUnsignedShort();
+        if (height == 0 || width == 0) {
+            throw new IOException(String.format("Invalid frame dimensions %sx%s", height, width));
+        }
+        return new FrameHeader(height, width);
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        int remaining = count;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                in.readByte(); // throws EOFException at end of stream
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    // Markers without a length or payload
+    private static boolean isStandalone(int marker) {
+        return marker == TEM || (marker >= RST0 && marker <= RST7);
+    }
+
+    // SOF0-SOF15, excluding DHT (C4), JPG (C8) and DAC (CC)
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    public static final class FrameHeader {
+        private final int height;
+        private final int width;
+
+        private FrameHeader(int height, int width) {
+            this.height = height;
+            this.width = width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        public int width() {
+            return width;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download;
+
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Sliding window of the most recent successful transfer durations, used to decide when a download has become a
+ * straggler worth hedging.
+ */
+final class TransferStats {
+
+    private final long[] samples;
+    private final int minSamples;
+
+    private int count = 0;
+    private int next = 0;
+
+    TransferStats(int windowSize, int minSamples) {
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+        Preconditions.checkArgument(minSamples <= windowSize, "Min samples (%s) exceeds window size (%s)",
+                minSamples, windowSize);
+        this.samples = new long[windowSize];
+        this.minSamples = minSamples;
+    }
+
+    synchronized void record(Duration duration) {
+        samples[next] = duration.toNanos();
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Returns the given percentile (in [0, 1]) of the recorded durations, or empty if too few transfers have been
+     * observed for the estimate to be meaningful.
+     */
+    synchronized Optional<Duration> percentile(double percentile) {
+        if (count < Math.max(minSamples, 1)) {
+            return Optional.empty();
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return Optional.of(Duration.ofNanos(sorted[Math.max(0, Math.min(count - 1, index))]));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.download.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Settings of a {@link edu.cmu.cs.dvids.scraper.download.DownloadEngine}. This is a plain configuration block rather
+ * than a Dropwizard {@code Configuration}, so it can be nested in either application's config.
+ */
+public final class DownloadConfig {
+
+    @JsonProperty("output-dir")
+    private String outputDir;
+
+    // Raw /asset responses are archived here when set
+    @JsonProperty("archive-dir")
+    private String archiveDir;
+
+    // When set, each image is also written to derivative-dir/<size> for each size (longest edge in pixels)
+    @JsonProperty("derivative-dir")
+    private String derivativeDir;
+
+    @JsonProperty("derivative-sizes")
+    private List<Integer> derivativeSizes = Collections.emptyList();
+
+    // Sampled request traces are written here when set; summarize them with the trace-summary command
+    @JsonProperty("trace-dir")
+    private String traceDir;
+
+    // Fraction of successful requests to trace; failures are always traced
+    @JsonProperty("trace-sample-rate")
+    private double traceSampleRate = 0.01;
+
+    @JsonProperty("min-concurrency")
+    private int minConcurrency = 1;
+
+    // Concurrency limit to start from; defaults to halfway between min-concurrency and max-concurrency
+    @JsonProperty("initial-concurrency")
+    private Integer initialConcurrency;
+
+    @JsonProperty("max-concurrency")
+    private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+
+    @JsonProperty("hedge-percentile")
+    private double hedgePercentile = 0.95;
+
+    @JsonProperty("hedge-min-samples")
+    private int hedgeMinSamples = 100;
+
+    @JsonProperty("stall-min-bytes-per-second")
+    private long stallMinBytesPerSecond = 16 * 1024;
+
+    @JsonProperty("stall-window")
+    private Duration stallWindow = Duration.seconds(30);
+
+    public String outputDir() {
+        return outputDir;
+    }
+
+    public Optional<String> archiveDir() {
+        return Optional.ofNullable(archiveDir);
+    }
+
+    public Optional<String> derivativeDir() {
+        return Optional.ofNullable(derivativeDir);
+    }
+
+    public List<Integer> derivativeSizes() {
+        return derivativeSizes;
+    }
+
+    public Optional<String> traceDir() {
+        return Optional.ofNullable(traceDir);
+    }
+
+    public double traceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public int minConcurrency() {
+        return minConcurrency;
+    }
+
+    public int initialConcurrency() {
+        return initialConcurrency != null ? initialConcurrency : (minConcurrency + maxConcurrency) / 2;
+    }
+
+    public int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public double hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public int hedgeMinSamples() {
+        return hedgeMinSamples;
+    }
+
+    public long stallMinBytesPerSecond() {
+        return stallMinBytesPerSecond;
+    }
+
+    public Duration stallWindow() {
+        return stallWindow;
+    }
+}
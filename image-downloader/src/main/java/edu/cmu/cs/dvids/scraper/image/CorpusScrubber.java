@@ -0,0 +1,360 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.image;
+
+import edu.cmu.cs.dvids.scraper.common.Compression;
+import edu.cmu.cs.dvids.scraper.common.MetadataIndex;
+import edu.cmu.cs.dvids.scraper.download.JpegInspector;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks the hash subdirectories of the image output directory in parallel, deleting orphaned tmp files and
+ * corrupt images. Tmp files modified within the last hour are left alone, as a running downloader may still be
+ * writing them. Completed subdirectories and corrupt ids are appended to files in the output directory as the scrub
+ * progresses, so an interrupted scrub resumes where it left off. Corrupt ids are finally written out as a metadata
+ * csv that can be fed back to the downloader as its input file.
+ *
+ * <p>Expected dimensions and requeue rows come from the metadata index when one is configured, as it covers every
+ * split. Otherwise they come from the single input file, and images from other splits only get the structural check.
+ */
+final class CorpusScrubber {
+
+    private static final Logger log = LoggerFactory.getLogger(CorpusScrubber.class);
+
+    private static final String PROGRESS_FILE = ".scrub-progress";
+    private static final String CORRUPT_FILE = ".scrub-corrupt";
+    private static final String REQUEUE_FILE = "scrub-requeue.csv";
+    private static final String ID_PREFIX = "image:";
+    private static final String IMAGE_SUFFIX = ".jpg";
+    private static final String TMP_SUFFIX = ".tmp.jpg";
+    private static final Duration TMP_MIN_AGE = Duration.ofHours(1);
+    // Columns of a metadata csv row, as read by the downloader
+    private static final int ID_COLUMN = 0;
+    private static final int HEIGHT_COLUMN = 10;
+    private static final int THUMBNAIL_COLUMN = 16;
+    private static final int WIDTH_COLUMN = 21;
+
+    private final Path outputDir;
+    private final Optional<Path> indexFile;
+    private final Path inputFile;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong tmpRemoved = new AtomicLong();
+    private final AtomicLong tmpSkipped = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+
+    // Set while scrubbing when an index file is configured
+    private MetadataIndex index;
+    // Expected dimensions by image id from the input file, packed as (height << 32 | width)
+    private Map<String, Long> expectedDimensions = new HashMap<>();
+    private Writer progressWriter;
+    private Writer corruptWriter;
+
+    CorpusScrubber(Path outputDir, Optional<Path> indexFile, Path inputFile) {
+        this.outputDir = outputDir;
+        this.indexFile = indexFile;
+        this.inputFile = inputFile;
+    }
+
+    void scrub(int threads, boolean restart) throws IOException, InterruptedException, ExecutionException {
+        if (indexFile.isPresent()) {
+            try (MetadataIndex opened = MetadataIndex.open(indexFile.get())) {
+                log.info("Checking images against the {} records of {}", opened.size(), indexFile.get());
+                this.index = opened;
+                scrubAll(threads, restart);
+            } finally {
+                this.index = null;
+            }
+        } else {
+            if (inputFile != null && inputFile.toFile().exists()) {
+                expectedDimensions = loadExpectedDimensions();
+            }
+            scrubAll(threads, restart);
+        }
+    }
+
+    private void scrubAll(int threads, boolean restart) throws IOException, InterruptedException, ExecutionException {
+        Path progressFile = outputDir.resolve(PROGRESS_FILE);
+        Path corruptFile = outputDir.resolve(CORRUPT_FILE);
+        if (restart) {
+            Files.deleteIfExists(progressFile);
+            Files.deleteIfExists(corruptFile);
+        }
+
+        Set<String> completed = progressFile.toFile().exists()
+                ? new HashSet<>(Files.readAllLines(progressFile, StandardCharsets.UTF_8))
+                : new HashSet<>();
+
+        List<Path> remaining;
+        try (Stream<Path> dirs = Files.list(outputDir)) {
+            remaining = dirs.filter(Files::isDirectory)
+                    .filter(dir -> !completed.contains(dir.getFileName().toString()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        log.info("Scrubbing {} directories under {} ({} already completed)", remaining.size(), outputDir,
+                completed.size());
+
+        ExecutorService scrubService = Executors.newFixedThreadPool(threads);
+        try (Writer progress = append(progressFile);
+                Writer corruptIds = append(corruptFile)) {
+            this.progressWriter = progress;
+            this.corruptWriter = corruptIds;
+
+            List<Future<?>> futures = remaining.stream()
+                    .map(dir -> scrubService.submit(() -> scrubDirectory(dir)))
+                    .collect(Collectors.toList());
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            scrubService.shutdownNow();
+        }
+
+        log.info("Scrubbed {} images: removed {} tmp files and {} corrupt images, skipped {} recent tmp files",
+                scanned.get(), tmpRemoved.get(), corrupt.get(), tmpSkipped.get());
+
+        // The scrub is complete, so the next one should start over; corrupt ids are only kept if some of them could
+        // not be written to the requeue csv
+        if (writeRequeue(corruptFile)) {
+            Files.delete(corruptFile);
+        }
+        Files.delete(progressFile);
+    }
+
+    private void scrubDirectory(Path dir) {
+        List<String> corruptIds = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    removeIfStale(file);
+                } else if (name.endsWith(IMAGE_SUFFIX)) {
+                    scanned.incrementAndGet();
+                    String imageId = name.substring(0, name.length() - IMAGE_SUFFIX.length());
+                    if (!isValid(file, imageId)) {
+                        Files.deleteIfExists(file);
+                        corrupt.incrementAndGet();
+                        corruptIds.add(imageId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to scrub directory " + dir, e);
+        }
+
+        markCompleted(dir, corruptIds);
+    }
+
+    private void removeIfStale(Path file) throws IOException {
+        try {
+            if (Files.getLastModifiedTime(file).toInstant().isAfter(Instant.now().minus(TMP_MIN_AGE))) {
+                tmpSkipped.incrementAndGet();
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            // Renamed into place by a running downloader since the directory was listed
+            return;
+        }
+
+        if (Files.deleteIfExists(file)) {
+            tmpRemoved.incrementAndGet();
+        }
+    }
+
+    private boolean isValid(Path file, String imageId) throws IOException {
+        JpegInspector.FrameHeader header;
+        try {
+            header = JpegInspector.inspect(file);
+        } catch (IOException e) {
+            log.warn("Image {} is corrupt: {}", file, e.getMessage());
+            return false;
+        }
+
+        Optional<Long> expected = expectedDimensions(imageId);
+        if (expected.isPresent()) {
+            int height = (int) (expected.get() >>> 32);
+            int width = (int) (long) expected.get();
+            if (height != header.height() || width != header.width()) {
+                log.warn("Image {} has dimensions {}x{}, expected {}x{}", file, header.height(), header.width(),
+                        height, width);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Optional<Long> expectedDimensions(String imageId) throws IOException {
+        if (index == null) {
+            return Optional.ofNullable(expectedDimensions.get(imageId));
+        }
+        return indexEntry(imageId).map(entry -> pack(entry.height(), entry.width()));
+    }
+
+    private Optional<MetadataIndex.Entry> indexEntry(String imageId) throws IOException {
+        try {
+            return index.entry(Integer.parseInt(imageId));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private synchronized void markCompleted(Path dir, List<String> corruptIds) {
+        try {
+            // Corrupt ids must be durable before the directory is marked done, or a resumed scrub would lose them
+            for (String imageId : corruptIds) {
+                corruptWriter.write(imageId);
+                corruptWriter.write('\n');
+            }
+            corruptWriter.flush();
+
+            progressWriter.write(dir.getFileName().toString());
+            progressWriter.write('\n');
+            progressWriter.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to record scrub progress for " + dir, e);
+        }
+    }
+
+    private Map<String, Long> loadExpectedDimensions() throws IOException {
+        Map<String, Long> dimensions = new HashMap<>();
+        try (CSVParser parser = CSVParser.parse(Compression.newReader(inputFile), CSVFormat.DEFAULT)) {
+            for (CSVRecord record : parser) {
+                dimensions.put(
+                        stripPrefix(record.get(ID_COLUMN)),
+                        pack(Integer.parseInt(record.get(HEIGHT_COLUMN)),
+                                (int) Double.parseDouble(record.get(WIDTH_COLUMN))));
+            }
+        }
+        log.info("Loaded expected dimensions for {} images from {}", dimensions.size(), inputFile);
+        return dimensions;
+    }
+
+    private boolean writeRequeue(Path corruptFile) throws IOException {
+        Set<String> corruptIds = new HashSet<>(Files.readAllLines(corruptFile, StandardCharsets.UTF_8));
+        if (corruptIds.isEmpty()) {
+            return true;
+        }
+
+        if (index == null && (inputFile == null || !inputFile.toFile().exists())) {
+            log.warn("No index or input file to requeue {} corrupt images from; their ids are listed in {}",
+                    corruptIds.size(), corruptFile);
+            return false;
+        }
+
+        Path metadataFile = index != null ? indexFile.get() : inputFile;
+        Path requeueFile = outputDir.resolve(REQUEUE_FILE);
+        Path tmpFile = outputDir.resolve(REQUEUE_FILE + ".tmp");
+        Set<String> unmatched = new HashSet<>(corruptIds);
+        try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8);
+                CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT)) {
+            if (index != null) {
+                writeRequeueFromIndex(printer, unmatched);
+            } else {
+                writeRequeueFromInputFile(printer, unmatched);
+            }
+        }
+        Files.move(tmpFile, requeueFile, StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Wrote {} of {} corrupt images to {}; use it as the input file to download them again",
+                corruptIds.size() - unmatched.size(), corruptIds.size(), requeueFile);
+        if (unmatched.isEmpty()) {
+            return true;
+        }
+
+        // Keep only the ids missing from the input file, so a later scrub with another input file can requeue them
+        Path corruptTmpFile = outputDir.resolve(CORRUPT_FILE + ".tmp");
+        Files.write(corruptTmpFile, unmatched, StandardCharsets.UTF_8);
+        Files.move(corruptTmpFile, corruptFile, StandardCopyOption.ATOMIC_MOVE);
+        log.warn("{} corrupt images are not in {}; their ids are listed in {}", unmatched.size(), metadataFile,
+                corruptFile);
+        return false;
+    }
+
+    /**
+     * Writes a row for each id found in the index, removing it from {@code unmatched}. The index only holds what the
+     * downloader needs, so the other columns of these rows are left empty.
+     */
+    private void writeRequeueFromIndex(CSVPrinter printer, Set<String> unmatched) throws IOException {
+        for (String imageId : new ArrayList<>(unmatched)) {
+            Optional<MetadataIndex.Entry> entry = indexEntry(imageId);
+            if (entry.isPresent()) {
+                String[] row = new String[WIDTH_COLUMN + 1];
+                Arrays.fill(row, "");
+                row[ID_COLUMN] = ID_PREFIX + imageId;
+                row[HEIGHT_COLUMN] = Integer.toString(entry.get().height());
+                row[THUMBNAIL_COLUMN] = entry.get().thumbnail().orElse("");
+                row[WIDTH_COLUMN] = Integer.toString(entry.get().width());
+                printer.printRecord((Object[]) row);
+                unmatched.remove(imageId);
+            }
+        }
+    }
+
+    private void writeRequeueFromInputFile(CSVPrinter printer, Set<String> unmatched) throws IOException {
+        try (CSVParser parser = CSVParser.parse(Compression.newReader(inputFile), CSVFormat.DEFAULT)) {
+            for (CSVRecord record : parser) {
+                if (unmatched.remove(stripPrefix(record.get(ID_COLUMN)))) {
+                    printer.printRecord(record);
+                }
+            }
+        }
+    }
+
+    private static Writer append(Path file) throws IOException {
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static long pack(int height, int width) {
+        return ((long) height << 32) | (width & 0xFFFFFFFFL);
+    }
+
+    private static String stripPrefix(String id) {
+        return id.startsWith(ID_PREFIX) ? id.substring(ID_PREFIX.length()) : id;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.image;
+
+import edu.cmu.cs.dvids.scraper.image.config.ImageDownloaderConfig;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import java.nio.file.Paths;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+final class ScrubCommand extends ConfiguredCommand<ImageDownloaderConfig> {
+
+    private static final String RESTART = "restart";
+
+    ScrubCommand() {
+        super("scrub", "Removes orphaned tmp files and corrupt images from the output directory");
+    }
+
+    @Override
+    public void configure(Subparser subparser) {
+        super.configure(subparser);
+        subparser.addArgument("--restart")
+                .dest(RESTART)
+                .action(Arguments.storeTrue())
+                .help("ignore the progress of a previous scrub and start over");
+    }
+
+    @Override
+    protected void run(Bootstrap<ImageDownloaderConfig> bootstrap, Namespace namespace, ImageDownloaderConfig config)
+            throws Exception {
+        new CorpusScrubber(
+                Paths.get(config.download().outputDir()),
+                config.indexFile().map(Paths::get),
+                config.inputFile() == null ? null : Paths.get(config.inputFile()))
+                .scrub(Runtime.getRuntime().availableProcessors(), namespace.getBoolean(RESTART));
+    }
+}
@@ -13,7 +13,9 @@
 package edu.cmu.cs.dvids.scraper.image.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import edu.cmu.cs.dvids.scraper.download.config.DownloadConfig;
 import io.dropwizard.Configuration;
+import java.util.Optional;
 
 public final class ImageDownloaderConfig extends Configuration {
 
@@ -23,19 +25,35 @@ public final class ImageDownloaderConfig extends Configuration {
     @JsonProperty("input-file")
     private String inputFile;
 
-    @JsonProperty("output-dir")
-    private String outputDir;
+    // Index written by the metadata scraper alongside the merged splits; required when filter is set, and preferred
+    // over input-file by the scrub command since it covers every split
+    @JsonProperty("index-file")
+    private String indexFile;
+
+    // When set, matching ids are read from the index instead of input-file, e.g. "branch=Navy and date>=2019-01-01"
+    @JsonProperty("filter")
+    private String filter;
+
+    @JsonProperty("download")
+    private DownloadConfig download;
 
     public String apiKey() {
         return apiKey;
     }
 
-    public String outputDir() {
-        return outputDir;
-    }
-
     public String inputFile() {
         return inputFile;
     }
 
+    public Optional<String> indexFile() {
+        return Optional.ofNullable(indexFile);
+    }
+
+    public Optional<String> filter() {
+        return Optional.ofNullable(filter);
+    }
+
+    public DownloadConfig download() {
+        return download;
+    }
 }
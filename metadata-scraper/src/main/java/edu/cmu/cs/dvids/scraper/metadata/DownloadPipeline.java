@@ -0,0 +1,83 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.metadata;
+
+import edu.cmu.cs.dvids.scraper.download.DownloadEngine;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Streams scraped results straight into a {@link DownloadEngine}, skipping ids that another (overlapping) date window
+ * queued recently. Only the most recent ids are remembered; an older duplicate is queued again and skipped by the
+ * engine, which does not download images that are already on disk. The engine's queue is far smaller than the
+ * remembered window, so an id that has been forgotten has long since been taken by a download worker.
+ */
+final class DownloadPipeline {
+
+    private static final int RECENT_IDS = 100_000;
+
+    private final DownloadEngine engine;
+    // Oldest first; guarded by this
+    private final Set<String> queued = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_IDS;
+        }
+    });
+
+    DownloadPipeline(DownloadEngine engine) {
+        this.engine = engine;
+    }
+
+    void accept(List<Result> results) {
+        results.forEach(result -> {
+            if (markQueued(result.id())) {
+                try {
+                    engine.submit(result.id(), result.height(), result.width(), result.thumbnail().orElse(null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while queueing result " + result.id(), e);
+                }
+            }
+        });
+    }
+
+    void accept(CSVRecord record) {
+        if (markQueued(record.get(0))) {
+            try {
+                engine.submit(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while queueing record " + record.get(0), e);
+            }
+        }
+    }
+
+    void finish() {
+        engine.finish();
+    }
+
+    void awaitTermination() throws InterruptedException, ExecutionException, IOException {
+        engine.awaitTermination();
+    }
+
+    private synchronized boolean markQueued(String id) {
+        return queued.add(id);
+    }
+}
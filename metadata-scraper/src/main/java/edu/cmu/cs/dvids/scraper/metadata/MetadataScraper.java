@@ -12,16 +12,29 @@
 
 package edu.cmu.cs.dvids.scraper.metadata;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.guava.GuavaModule;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.codahale.metrics.Gauge;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import edu.cmu.cs.dvids.scraper.common.AdaptiveLimiter;
+import edu.cmu.cs.dvids.scraper.common.BatchCommand;
+import edu.cmu.cs.dvids.scraper.common.Compression;
+import edu.cmu.cs.dvids.scraper.common.MetadataIndex;
+import edu.cmu.cs.dvids.scraper.common.MetadataIndexWriter;
+import edu.cmu.cs.dvids.scraper.common.RequestTracer;
+import edu.cmu.cs.dvids.scraper.common.ResponseArchive;
+import edu.cmu.cs.dvids.scraper.common.TraceSummaryCommand;
+import edu.cmu.cs.dvids.scraper.download.DownloadEngine;
 import edu.cmu.cs.dvids.scraper.metadata.config.MetadataScraperConfig;
 import io.dropwizard.Application;
+import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -31,21 +44,25 @@ import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,43 +70,96 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
 
     private static final Logger log = LoggerFactory.getLogger(MetadataScraper.class);
 
-    private static final ObjectMapper MAPPER = new ObjectMapper()
-            .registerModule(new Jdk8Module())
-            .registerModule(new GuavaModule());
-
     private static final String SEARCH_URL = "https://api.dvidshub.net/search";
     private static final String ID_PREFIX = "image:";
+    private static final String INDEX_FILE = "dvids-metadata.idx";
+    private static final Pattern DAILY_CSV = Pattern.compile("\\d{4}-\\d{2}-\\d{2}\\.csv(\\.gz)?");
+    private static final String SPLIT_PREFIX = "dvids-metadata.csv.";
+    private static final Pattern SPLIT_CSV = Pattern.compile("dvids-metadata\\.csv\\.(\\d+)(\\.gz)?");
 
     private MetadataScraper() {
     }
 
     @Override
-    public void run(MetadataScraperConfig config, Environment _environment) {
+    public void initialize(Bootstrap<MetadataScraperConfig> bootstrap) {
+        bootstrap.addCommand(new BatchCommand<>(this));
+        bootstrap.addCommand(new TraceSummaryCommand<>(this, MetadataScraperConfig::traceDir));
+    }
+
+    @Override
+    public void run(MetadataScraperConfig config, Environment environment) throws Exception {
         Path outputDir = Paths.get(config.outputDir());
         outputDir.toFile().mkdir();
-        OkHttpClient client = new OkHttpClient.Builder()
+        OkHttpClient okHttpClient = new OkHttpClient.Builder()
                 .connectTimeout(Duration.ofMinutes(5))
                 .readTimeout(Duration.ofMinutes(5))
                 .writeTimeout(Duration.ofMinutes(5))
                 .build();
 
-        LocalDate date = config.latestDate();
-        while (date.isAfter(LocalDate.of(2013, 12, 31))) {
-            saveDate(client, config.apiKey(), date, outputDir);
-            date = date.minusDays(1);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(
+                config.minConcurrency(), config.initialConcurrency(), config.maxConcurrency());
+        environment.metrics().register("scraper.concurrency-limit", (Gauge<Integer>) limiter::limit);
+        environment.metrics().register("scraper.in-flight", (Gauge<Integer>) limiter::inFlight);
+
+        Preconditions.checkArgument(!config.replay() || config.archiveDir().isPresent(),
+                "Replaying responses requires an archive-dir");
+
+        // In pipeline mode images are downloaded as soon as their metadata is scraped. Replay never touches the
+        // network, so it does not download.
+        Optional<DownloadPipeline> pipeline = config.download()
+                .filter(download -> !config.replay())
+                .map(download -> new DownloadPipeline(DownloadEngine.start(download, config.apiKey(), environment)));
+
+        RequestTracer tracer = config.traceDir().isPresent()
+                ? RequestTracer.open(Paths.get(config.traceDir().get()), "search", config.traceSampleRate())
+                : RequestTracer.disabled();
+        SearchClient client = new SearchClient(okHttpClient, limiter, tracer);
+        try {
+            // Dates are scraped concurrently so that the limiter has requests to admit; each date is still crawled
+            // sequentially
+            ListeningExecutorService scraperService = MoreExecutors.listeningDecorator(environment.lifecycle()
+                    .executorService("scraper-%d")
+                    .minThreads(config.maxConcurrency())
+                    .maxThreads(config.maxConcurrency())
+                    .build());
+
+            List<ListenableFuture<?>> dates = new ArrayList<>();
+            LocalDate date = config.latestDate();
+            while (date.isAfter(LocalDate.of(2013, 12, 31))) {
+                LocalDate currentDate = date;
+                Runnable task = config.replay()
+                        ? () -> replayDate(config, currentDate, outputDir)
+                        : () -> saveDate(client, config, currentDate, outputDir, pipeline);
+                dates.add(scraperService.submit(task));
+                date = date.minusDays(1);
+            }
+
+            Futures.allAsList(dates).get();
+        } finally {
+            tracer.close();
         }
 
-        mergeAll(outputDir, config.numSplits());
+        pipeline.ifPresent(DownloadPipeline::finish);
+
+        mergeAll(outputDir, config.numSplits(), config.compression());
+
+        if (pipeline.isPresent()) {
+            pipeline.get().awaitTermination();
+        }
     }
 
-    private void mergeAll(Path outputDir, int numSplits) {
+    private void mergeAll(Path outputDir, int numSplits, Compression compression) {
+        deleteStaleSplits(outputDir, numSplits, compression);
+
         Set<Integer> visited = new HashSet<>();
         Map<Integer, CSVPrinter> printers = new HashMap<>();
-        try (Stream<Path> outputFiles = Files.list(outputDir).filter(f -> f.toString().endsWith(".csv"))) {
+        MetadataIndexWriter index = createIndexWriter(outputDir);
+        try (Stream<Path> outputFiles = Files.list(outputDir)
+                .filter(f -> DAILY_CSV.matcher(f.getFileName().toString()).matches())) {
             outputFiles.forEach(csvFile -> {
                 log.info("Merging file {}", csvFile);
 
-                try (CSVParser parser = CSVParser.parse(csvFile, StandardCharsets.UTF_8, CSVFormat.DEFAULT)) {
+                try (CSVParser parser = CSVParser.parse(Compression.newReader(csvFile), CSVFormat.DEFAULT)) {
                     while (parser.iterator().hasNext()) {
                         CSVRecord record = parser.iterator().next();
                         String imageId = record.get(0);
@@ -99,8 +169,11 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
                             continue;
                         }
 
-                        printers.computeIfAbsent(visited.size() % numSplits, k -> createPrinter(outputDir, k))
+                        printers.computeIfAbsent(
+                                visited.size() % numSplits,
+                                k -> createPrinter(outputDir, k, compression))
                                 .printRecord(record);
+                        indexRecord(index, imageIdInt, record);
 
                         visited.add(imageIdInt);
                     }
@@ -109,7 +182,11 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
                 }
             });
         } catch (IOException e) {
+            index.abort();
             throw new RuntimeException("Failed to merge metadata", e);
+        } catch (RuntimeException e) {
+            index.abort();
+            throw e;
         } finally {
             printers.values().forEach(p -> {
                 try {
@@ -120,33 +197,125 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
             });
         }
 
+        try {
+            index.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write metadata index", e);
+        }
+
         log.info("Merged {} results", visited.size());
     }
 
-    private CSVPrinter createPrinter(Path outputDir, int split) {
+    // Splits from a merge with another compression or split count would otherwise be left next to the new ones
+    private void deleteStaleSplits(Path outputDir, int numSplits, Compression compression) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(outputDir, SPLIT_PREFIX + "*")) {
+            for (Path file : files) {
+                Matcher matcher = SPLIT_CSV.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                if (Compression.forFile(file) != compression || Integer.parseInt(matcher.group(1)) >= numSplits) {
+                    log.info("Deleting stale split {}", file);
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete stale splits", e);
+        }
+    }
+
+    private MetadataIndexWriter createIndexWriter(Path outputDir) {
         try {
-            FileWriter out =
-                    new FileWriter(outputDir.resolve("dvids-metadata.csv." + split).toFile(), StandardCharsets.UTF_8);
+            return MetadataIndexWriter.create(outputDir.resolve(INDEX_FILE));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create metadata index", e);
+        }
+    }
+
+    private void indexRecord(MetadataIndexWriter index, int imageId, CSVRecord record) throws IOException {
+        List<String> terms = new ArrayList<>();
+        addTerm(terms, "branch", record.get(2));
+        addTerm(terms, "category", record.get(4));
+        addTerm(terms, "city", record.get(5));
+        addTerm(terms, "country", record.get(6));
+        Splitter.on(',').split(record.get(7)).forEach(keyword -> addTerm(terms, "keywords", keyword));
+        addTerm(terms, "state", record.get(13));
+        addTerm(terms, "unit_name", record.get(19));
+
+        index.add(
+                imageId,
+                parseDate(record.get(8)),
+                terms,
+                Integer.parseInt(record.get(10)),
+                (int) Double.parseDouble(record.get(21)),
+                record.get(16));
+    }
+
+    private static void addTerm(List<String> terms, String field, String value) {
+        if (!value.isBlank()) {
+            terms.add(MetadataIndex.term(field, value));
+        }
+    }
+
+    @Nullable
+    private static LocalDate parseDate(String date) {
+        try {
+            return date.length() >= 10 ? LocalDate.parse(date.substring(0, 10)) : null;
+        } catch (DateTimeParseException e) {
+            log.warn("Failed to parse date {}", date, e);
+            return null;
+        }
+    }
+
+    private CSVPrinter createPrinter(Path outputDir, int split, Compression compression) {
+        try {
+            Writer out = compression.newWriter(outputDir.resolve(SPLIT_PREFIX + split + compression.suffix()));
             return new CSVPrinter(out, CSVFormat.DEFAULT);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create printer", e);
         }
     }
 
-    private void saveDate(OkHttpClient client, String apiKey, LocalDate date, Path outputDir) {
-        Path outputFile = outputDir.resolve(date.toString() + ".csv");
-        if (outputFile.toFile().exists()) {
+    private void saveDate(
+            SearchClient client,
+            MetadataScraperConfig config,
+            LocalDate date,
+            Path outputDir,
+            Optional<DownloadPipeline> pipeline) {
+        // Files written with a different compression setting still count
+        Optional<Path> existingFile = Stream.of(Compression.values())
+                .map(c -> outputDir.resolve(date.toString() + ".csv" + c.suffix()))
+                .filter(f -> f.toFile().exists())
+                .findFirst();
+        if (existingFile.isPresent()) {
             log.info("File for date {} already exists, skipping", date);
+            pipeline.ifPresent(p -> queueExisting(p, existingFile.get()));
             return;
         }
 
+        Compression compression = config.compression();
+        Path outputFile = outputDir.resolve(date.toString() + ".csv" + compression.suffix());
         Path tmpFile = outputDir.resolve(date.toString() + ".tmp");
 
-        try (FileWriter out = new FileWriter(tmpFile.toFile(), StandardCharsets.UTF_8);
+        // A date that did not finish is scraped again from scratch, so its responses are too
+        Optional<ResponseArchive> archive = config.archiveDir().map(dir -> openArchive(Paths.get(dir), date));
+
+        try (Writer out = compression.newWriter(tmpFile);
                 CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT)) {
-            writeEntries(client, apiKey, printer, date.atStartOfDay().atOffset(ZoneOffset.UTC), Duration.ofDays(1));
+            writeEntries(
+                    client,
+                    config.apiKey(),
+                    results -> {
+                        printResults(printer, results);
+                        pipeline.ifPresent(p -> p.accept(results));
+                    },
+                    archive,
+                    date.atStartOfDay().atOffset(ZoneOffset.UTC),
+                    Duration.ofDays(1));
         } catch (IOException e) {
             throw new RuntimeException("Failed to write csv values for date: " + date, e);
+        } finally {
+            archive.ifPresent(a -> closeArchive(a, date));
         }
 
         try {
@@ -155,17 +324,103 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
             throw new RuntimeException("Failed to move tmp file", e);
         }
 
+        // Only now does the archive hold every page of the date; until then replay leaves the date alone
+        config.archiveDir().ifPresent(dir -> markArchiveComplete(Paths.get(dir), date));
+
         log.info("Saved file for date {} at {}", date, outputFile);
     }
 
+    private void replayDate(MetadataScraperConfig config, LocalDate date, Path outputDir) {
+        Path archiveFile = archiveFile(Paths.get(config.archiveDir().get()), date);
+        if (!archiveFile.toFile().exists()) {
+            log.warn("No archived responses for date {}, skipping", date);
+            return;
+        }
+        if (!ResponseArchive.isComplete(archiveFile)) {
+            log.warn("Archived responses for date {} are incomplete, skipping", date);
+            return;
+        }
+
+        Compression compression = config.compression();
+        Path outputFile = outputDir.resolve(date.toString() + ".csv" + compression.suffix());
+        Path tmpFile = outputDir.resolve(date.toString() + ".tmp");
+
+        try (ResponseArchive.Reader archive = ResponseArchive.Reader.open(archiveFile);
+                Writer out = compression.newWriter(tmpFile);
+                CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT)) {
+            for (String key : archive.keys()) {
+                SearchResult result = SearchClient.parseSearchResult(archive.read(key).get());
+                // Truncated windows were split and re-requested, so only their halves were written out
+                if (result.pageInfo().totalResults() != 1000) {
+                    printResults(printer, result.results());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replay archived responses for date: " + date, e);
+        }
+
+        try {
+            for (Compression other : Compression.values()) {
+                if (other != compression) {
+                    Files.deleteIfExists(outputDir.resolve(date.toString() + ".csv" + other.suffix()));
+                }
+            }
+            Files.move(tmpFile, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to move tmp file", e);
+        }
+
+        log.info("Replayed file for date {} at {}", date, outputFile);
+    }
+
+    private ResponseArchive openArchive(Path archiveDir, LocalDate date) {
+        try {
+            archiveDir.toFile().mkdirs();
+            Path archiveFile = archiveFile(archiveDir, date);
+            ResponseArchive.delete(archiveFile);
+            return ResponseArchive.open(archiveFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open response archive for date: " + date, e);
+        }
+    }
+
+    private void closeArchive(ResponseArchive archive, LocalDate date) {
+        try {
+            archive.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close response archive for date: " + date, e);
+        }
+    }
+
+    private void markArchiveComplete(Path archiveDir, LocalDate date) {
+        try {
+            ResponseArchive.markComplete(archiveFile(archiveDir, date));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to mark response archive complete for date: " + date, e);
+        }
+    }
+
+    private Path archiveFile(Path archiveDir, LocalDate date) {
+        return archiveDir.resolve(date.toString() + ".responses.gz");
+    }
+
+    private void queueExisting(DownloadPipeline pipeline, Path csvFile) {
+        try (CSVParser parser = CSVParser.parse(Compression.newReader(csvFile), CSVFormat.DEFAULT)) {
+            parser.forEach(pipeline::accept);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to queue existing metadata from " + csvFile, e);
+        }
+    }
+
     private void writeEntries(
-            OkHttpClient client,
+            SearchClient client,
             String apiKey,
-            CSVPrinter printer,
+            Consumer<List<Result>> sink,
+            Optional<ResponseArchive> archive,
             OffsetDateTime start,
             Duration duration) {
         HttpUrl url = forRequest(apiKey, start, duration).build();
-        SearchResult result = getSearchResult(client, url);
+        SearchResult result = client.search(url, body -> archiveResponse(archive, start, duration, 1, body));
         int totalResults = result.pageInfo().totalResults();
         log.info("Got {} results for start {} and duration {}", totalResults, start, duration);
 
@@ -173,10 +428,10 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
             log.warn("Truncated results. Trying to get smaller window for start {} and duration {}",
                     start, duration);
             Duration newDuration = duration.dividedBy(2);
-            writeEntries(client, apiKey, printer, start, newDuration);
-            writeEntries(client, apiKey, printer, start.plus(newDuration), newDuration);
+            writeEntries(client, apiKey, sink, archive, start, newDuration);
+            writeEntries(client, apiKey, sink, archive, start.plus(newDuration), newDuration);
         } else {
-            printResults(printer, result.results());
+            sink.accept(result.results());
             int offset = result.pageInfo().resultsPerPage();
             int page = 2;
 
@@ -184,8 +439,10 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
                 HttpUrl pageUrl = forRequest(apiKey, start, duration)
                         .addQueryParameter("page", Integer.toString(page))
                         .build();
-                SearchResult pageResult = getSearchResult(client, pageUrl);
-                printResults(printer, pageResult.results());
+                int currentPage = page;
+                SearchResult pageResult =
+                        client.search(pageUrl, body -> archiveResponse(archive, start, duration, currentPage, body));
+                sink.accept(pageResult.results());
 
                 offset += pageResult.pageInfo().resultsPerPage();
                 page++;
@@ -193,6 +450,23 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
         }
     }
 
+    private void archiveResponse(
+            Optional<ResponseArchive> archive,
+            OffsetDateTime start,
+            Duration duration,
+            int page,
+            String body) {
+        if (archive.isPresent()) {
+            String key = String.format("search/%s/%s/%d",
+                    DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(start), duration, page);
+            try {
+                archive.get().append(key, body);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to archive response " + key, e);
+            }
+        }
+    }
+
     private void printResults(CSVPrinter printer, List<Result> results) {
         results.forEach(result -> {
             try {
@@ -238,44 +512,6 @@ public final class MetadataScraper extends Application<MetadataScraperConfig> {
                         DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(start.plus(duration)));
     }
 
-    private SearchResult getSearchResult(OkHttpClient client, HttpUrl url) {
-        return getSearchResult(client, url, 1);
-    }
-
-    private SearchResult getSearchResult(OkHttpClient client, HttpUrl url, int attempt) {
-        Request request = new Request.Builder().url(url).build();
-        log.info("Requesting url {}", url);
-        try (Response response = client.newCall(request).execute()) {
-            return parseSearchResult(response);
-        } catch (IOException | RuntimeException e) {
-            if (attempt < 3) {
-                log.error("Failed to execute request to url: {}. Retrying...", url, e);
-                return getSearchResult(client, url, attempt + 1);
-            } else {
-                throw new RuntimeException("Failed to execute request to url: " + url, e);
-            }
-        }
-    }
-
-    private SearchResult parseSearchResult(Response response) {
-        String responseString = getResponseString(response);
-
-        try {
-            return MAPPER.readValue(responseString, SearchResult.class);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to parse response: " + responseString, e);
-        }
-    }
-
-    @NotNull
-    private String getResponseString(Response response) {
-        try {
-            return response.body().string();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to get response body string", e);
-        }
-    }
-
     public static void main(String[] args) throws Exception {
         new MetadataScraper().run(args);
     }
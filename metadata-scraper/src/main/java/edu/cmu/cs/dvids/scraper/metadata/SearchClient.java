@@ -0,0 +1,57 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.metadata;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import edu.cmu.cs.dvids.scraper.common.AdaptiveLimiter;
+import edu.cmu.cs.dvids.scraper.common.ApiClient;
+import edu.cmu.cs.dvids.scraper.common.RequestTracer;
+import java.io.IOException;
+import java.util.function.Consumer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+/** Issues /search requests through an {@link ApiClient}, which bounds them with an {@link AdaptiveLimiter}. */
+final class SearchClient {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .registerModule(new Jdk8Module())
+            .registerModule(new GuavaModule());
+
+    private static final String ENDPOINT = "search";
+
+    private final ApiClient client;
+
+    SearchClient(OkHttpClient client, AdaptiveLimiter limiter, RequestTracer tracer) {
+        this.client = new ApiClient(client, limiter, tracer, ENDPOINT);
+    }
+
+    /** Searches, passing the raw response body to {@code bodyConsumer} once it has been parsed successfully. */
+    SearchResult search(HttpUrl url, Consumer<String> bodyConsumer) {
+        ApiClient.ParsedResponse<SearchResult> response = client.get(url, SearchClient::parseSearchResult);
+
+        // Failing to archive the body says nothing about the server, so it is neither retried nor counted as a drop
+        bodyConsumer.accept(response.body());
+        return response.result();
+    }
+
+    static SearchResult parseSearchResult(String responseString) {
+        try {
+            return MAPPER.readValue(responseString, SearchResult.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse response: " + responseString, e);
+        }
+    }
+}
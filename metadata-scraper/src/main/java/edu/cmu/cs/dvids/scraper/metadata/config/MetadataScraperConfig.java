@@ -13,8 +13,11 @@
 package edu.cmu.cs.dvids.scraper.metadata.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import edu.cmu.cs.dvids.scraper.common.Compression;
+import edu.cmu.cs.dvids.scraper.download.config.DownloadConfig;
 import io.dropwizard.Configuration;
 import java.time.LocalDate;
+import java.util.Optional;
 
 public final class MetadataScraperConfig extends Configuration {
 
@@ -33,6 +36,39 @@ public final class MetadataScraperConfig extends Configuration {
     @JsonProperty("num-splits")
     private int numSplits;
 
+    @JsonProperty("compression")
+    private Compression compression = Compression.NONE;
+
+    // Raw /search responses are archived here when set
+    @JsonProperty("archive-dir")
+    private String archiveDir;
+
+    // Rebuild the daily csvs from archive-dir instead of querying the api
+    @JsonProperty("replay")
+    private boolean replay = false;
+
+    // Sampled request traces are written here when set; summarize them with the trace-summary command
+    @JsonProperty("trace-dir")
+    private String traceDir;
+
+    // Fraction of successful requests to trace; failures are always traced
+    @JsonProperty("trace-sample-rate")
+    private double traceSampleRate = 0.01;
+
+    @JsonProperty("min-concurrency")
+    private int minConcurrency = 1;
+
+    // Concurrency limit to start from; defaults to halfway between min-concurrency and max-concurrency
+    @JsonProperty("initial-concurrency")
+    private Integer initialConcurrency;
+
+    @JsonProperty("max-concurrency")
+    private int maxConcurrency = 4;
+
+    // When set, images are downloaded while scraping instead of in a separate image-downloader run
+    @JsonProperty("download")
+    private DownloadConfig download;
+
     public String apiKey() {
         return apiKey;
     }
@@ -53,4 +89,40 @@ public final class MetadataScraperConfig extends Configuration {
         return numSplits;
     }
 
+    public Compression compression() {
+        return compression;
+    }
+
+    public Optional<String> archiveDir() {
+        return Optional.ofNullable(archiveDir);
+    }
+
+    public boolean replay() {
+        return replay;
+    }
+
+    public Optional<String> traceDir() {
+        return Optional.ofNullable(traceDir);
+    }
+
+    public double traceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public int minConcurrency() {
+        return minConcurrency;
+    }
+
+    public int initialConcurrency() {
+        return initialConcurrency != null ? initialConcurrency : (minConcurrency + maxConcurrency) / 2;
+    }
+
+    public int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public Optional<DownloadConfig> download() {
+        return Optional.ofNullable(download);
+    }
+
 }
@@ -0,0 +1,143 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.util.Optional;
+
+/**
+ * AIMD concurrency limiter. The limit grows by roughly one per limit's worth of successful requests and is cut
+ * multiplicatively when a request fails (errors, 429s) or its round trip time exceeds a multiple of the long-run
+ * average, bounded by the configured minimum and maximum.
+ */
+public final class AdaptiveLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final double RTT_SMOOTHING = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    // All guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private double averageRttNanos = Double.NaN;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AdaptiveLimiter(int minLimit, int initialLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid concurrency bounds (min: %s, initial: %s, max: %s)", minLimit, initialLimit, maxLimit));
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /** Blocks until a request may be issued under the current limit. */
+    public synchronized Permit acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+
+        inFlight++;
+        return new Permit(System.nanoTime());
+    }
+
+    /** Returns a permit if one is available under the current limit, without waiting. */
+    public synchronized Optional<Permit> tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return Optional.empty();
+        }
+
+        inFlight++;
+        return Optional.of(new Permit(System.nanoTime()));
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private synchronized void onSample(long rttNanos, boolean dropped) {
+        inFlight--;
+
+        boolean congested = dropped
+                || (!Double.isNaN(averageRttNanos) && rttNanos > RTT_TOLERANCE * averageRttNanos);
+
+        if (!dropped) {
+            averageRttNanos = Double.isNaN(averageRttNanos)
+                    ? rttNanos
+                    : (1 - RTT_SMOOTHING) * averageRttNanos + RTT_SMOOTHING * rttNanos;
+        }
+
+        long nowNanos = System.nanoTime();
+        if (congested) {
+            // Back off at most once per average round trip so a burst of failures from the same window of
+            // requests only counts once
+            if (Double.isNaN(averageRttNanos) || nowNanos - lastDecreaseNanos > averageRttNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = nowNanos;
+            }
+        } else if (inFlight + 1 >= (int) limit) {
+            // Only grow when the current limit is actually being used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+
+        notifyAll();
+    }
+
+    private synchronized void onIgnore() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * A slot under the limit. Exactly one of {@link #onSuccess()} or {@link #onDropped()} should be called once the
+     * request completes; closing a permit without either releases it without affecting the limit.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos;
+        private boolean released = false;
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        public void onSuccess() {
+            if (!released) {
+                released = true;
+                onSample(System.nanoTime() - startNanos, false);
+            }
+        }
+
+        public void onDropped() {
+            if (!released) {
+                released = true;
+                onSample(System.nanoTime() - startNanos, true);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                onIgnore();
+            }
+        }
+    }
+}
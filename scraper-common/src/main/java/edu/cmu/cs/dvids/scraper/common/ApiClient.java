@@ -0,0 +1,183 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues requests to the DVIDS api, bounding how many are in flight with an {@link AdaptiveLimiter}. Failed requests,
+ * 429s included, are retried with exponential backoff. Requests are traced rather than logged, and urls are redacted
+ * before they appear in a log line or exception since they carry the api key.
+ */
+public final class ApiClient {
+
+    private static final Logger log = LoggerFactory.getLogger(ApiClient.class);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Duration BASE_BACKOFF = Duration.ofSeconds(1);
+
+    private final OkHttpClient client;
+    private final AdaptiveLimiter limiter;
+    private final RequestTracer tracer;
+    private final String endpoint;
+
+    /** Creates a client whose requests are traced under {@code endpoint}. */
+    public ApiClient(OkHttpClient client, AdaptiveLimiter limiter, RequestTracer tracer, String endpoint) {
+        this.client = client;
+        this.limiter = limiter;
+        this.tracer = tracer;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Requests the url, returning the raw response body along with the result of {@code parser}. A body that fails to
+     * parse counts as a failed request and is retried.
+     */
+    public <T> ParsedResponse<T> get(HttpUrl url, Function<String, T> parser) {
+        return get(url, parser, 1);
+    }
+
+    private <T> ParsedResponse<T> get(HttpUrl url, Function<String, T> parser, int attempt) {
+        AdaptiveLimiter.Permit permit = acquirePermit(url);
+        try (permit) {
+            return execute(url, parser, permit, attempt);
+        } catch (IOException | RuntimeException e) {
+            if (attempt >= MAX_ATTEMPTS) {
+                throw new RuntimeException("Failed to execute request to url: " + RequestTracer.redact(url), e);
+            }
+
+            Duration backoff = backoff(attempt, e);
+            log.error("Failed to execute request to url: {}. Retrying in {} ms...", RequestTracer.redact(url),
+                    backoff.toMillis(), e);
+            sleep(backoff, url);
+            return get(url, parser, attempt + 1);
+        }
+    }
+
+    /** Issues a single request, reporting its outcome to the limiter through {@code permit}. */
+    private <T> ParsedResponse<T> execute(
+            HttpUrl url, Function<String, T> parser, AdaptiveLimiter.Permit permit, int attempt) throws IOException {
+        Request request = new Request.Builder().url(url).build();
+        long startNanos = System.nanoTime();
+        int status = RequestTracer.NO_STATUS;
+        long bytes = 0;
+        try (Response response = client.newCall(request).execute()) {
+            status = response.code();
+            if (status == TOO_MANY_REQUESTS) {
+                throw new RateLimitedException(url, retryAfter(response));
+            }
+
+            byte[] content = response.body().bytes();
+            bytes = content.length;
+            String body = new String(content, StandardCharsets.UTF_8);
+            T result = parser.apply(body);
+            permit.onSuccess();
+            tracer.record(endpoint, status, bytes, System.nanoTime() - startNanos, attempt, false);
+            return new ParsedResponse<>(body, result);
+        } catch (IOException | RuntimeException e) {
+            permit.onDropped();
+            tracer.record(endpoint, status, bytes, System.nanoTime() - startNanos, attempt, true);
+            throw e;
+        }
+    }
+
+    private AdaptiveLimiter.Permit acquirePermit(HttpUrl url) {
+        try {
+            return limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to request url: " + RequestTracer.redact(url), e);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, so that requests rejected together do not all come back together. A 429's
+     * Retry-After is honoured when it asks for longer.
+     */
+    private static Duration backoff(int attempt, Exception failure) {
+        long baseMillis = BASE_BACKOFF.toMillis() << (attempt - 1);
+        Duration backoff = Duration.ofMillis(baseMillis + ThreadLocalRandom.current().nextLong(baseMillis));
+        if (failure instanceof RateLimitedException) {
+            Optional<Duration> retryAfter = ((RateLimitedException) failure).retryAfter;
+            if (retryAfter.isPresent() && retryAfter.get().compareTo(backoff) > 0) {
+                return retryAfter.get();
+            }
+        }
+        return backoff;
+    }
+
+    /** Parses a Retry-After given in seconds; the http-date form is ignored in favour of the default backoff. */
+    private static Optional<Duration> retryAfter(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(Duration.ofSeconds(Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void sleep(Duration duration, HttpUrl url) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while backing off from url: " + RequestTracer.redact(url), e);
+        }
+    }
+
+    /** A response body and the result parsed from it. */
+    public static final class ParsedResponse<T> {
+        private final String body;
+        private final T result;
+
+        private ParsedResponse(String body, T result) {
+            this.body = body;
+            this.result = result;
+        }
+
+        public String body() {
+            return body;
+        }
+
+        public T result() {
+            return result;
+        }
+    }
+
+    private static final class RateLimitedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Optional<Duration> retryAfter;
+
+        private RateLimitedException(HttpUrl url, Optional<Duration> retryAfter) {
+            super("Rate limited requesting url: " + RequestTracer.redact(url));
+            this.retryAfter = retryAfter;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import io.dropwizard.Application;
+import io.dropwizard.Configuration;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.lifecycle.JettyManaged;
+import io.dropwizard.setup.Bootstrap;
+import io.dropwizard.setup.Environment;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an application's job and exits, without the server command's Jetty setup or its wait for shutdown. Managed
+ * objects registered before the job (metrics reporters) are started before it. Once the job returns, every managed
+ * object is stopped, including the executors the job registered while running, so that their threads do not keep the
+ * JVM alive.
+ */
+public final class BatchCommand<T extends Configuration> extends ConfiguredCommand<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchCommand.class);
+
+    private final Application<T> application;
+
+    public BatchCommand(Application<T> application) {
+        super("batch", "Runs the job to completion and exits without starting a server");
+        this.application = application;
+    }
+
+    @Override
+    protected Class<T> getConfigurationClass() {
+        return application.getConfigurationClass();
+    }
+
+    @Override
+    protected void run(Bootstrap<T> bootstrap, Namespace namespace, T configuration) throws Exception {
+        log.info("Started {} in {} ms", application.getName(), ManagementFactory.getRuntimeMXBean().getUptime());
+        long startNanos = System.nanoTime();
+
+        Environment environment = new Environment(
+                application.getName(),
+                bootstrap.getObjectMapper(),
+                bootstrap.getValidatorFactory(),
+                bootstrap.getMetricRegistry(),
+                bootstrap.getClassLoader(),
+                bootstrap.getHealthCheckRegistry(),
+                configuration);
+        configuration.getMetricsFactory().configure(environment.lifecycle(), bootstrap.getMetricRegistry());
+        bootstrap.run(configuration, environment);
+
+        try {
+            for (LifeCycle managed : environment.lifecycle().getManagedObjects()) {
+                managed.start();
+            }
+
+            application.run(configuration, environment);
+        } finally {
+            // Re-read, as the job registers its executors while it runs
+            List<LifeCycle> managedObjects = new ArrayList<>(environment.lifecycle().getManagedObjects());
+            Collections.reverse(managedObjects);
+            for (LifeCycle managed : managedObjects) {
+                try {
+                    stop(managed);
+                } catch (Exception e) {
+                    log.warn("Failed to stop {}", managed, e);
+                }
+            }
+        }
+
+        log.info("Finished {} in {} ms", application.getName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    // Jetty ignores stop() on a lifecycle that was never started, so the job's executors are stopped directly
+    private static void stop(LifeCycle managed) throws Exception {
+        if (!managed.isStarted() && managed instanceof JettyManaged) {
+            ((JettyManaged) managed).getManaged().stop();
+        } else {
+            managed.stop();
+        }
+    }
+}
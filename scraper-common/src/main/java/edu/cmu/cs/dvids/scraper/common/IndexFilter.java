@@ -0,0 +1,138 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Filter over a {@link MetadataIndex}, parsed from expressions such as
+ * {@code branch=Navy|Marines and keywords=helicopter and date>=2019-01-01 and date<2019-07-01}.
+ *
+ * <p>Clauses are joined with {@code and}; a clause on an indexed field matches any of its {@code |}-separated values.
+ * The indexed fields are listed in {@link MetadataIndex#FIELDS} and any other field is rejected. The {@code date}
+ * field supports {@code =, <, <=, >, >=}.
+ */
+public final class IndexFilter {
+
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CLAUSE = Pattern.compile("^\\s*([A-Za-z_]+)\\s*(<=|>=|=|<|>)\\s*(.+?)\\s*$");
+    private static final String DATE_FIELD = "date";
+
+    private final List<List<String>> termClauses;
+    private final LocalDate from;
+    private final LocalDate to;
+
+    private IndexFilter(List<List<String>> termClauses, LocalDate from, LocalDate to) {
+        this.termClauses = termClauses;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static IndexFilter parse(String expression) {
+        List<List<String>> termClauses = new ArrayList<>();
+        DateRange dates = new DateRange();
+
+        for (String clause : AND.split(expression.trim())) {
+            Matcher matcher = CLAUSE.matcher(clause);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(String.format("Invalid clause '%s' in filter: %s", clause,
+                        expression));
+            }
+
+            String field = matcher.group(1).toLowerCase(Locale.ROOT);
+            String op = matcher.group(2);
+            String value = matcher.group(3);
+
+            if (field.equals(DATE_FIELD)) {
+                dates.restrict(op, parseDate(value, expression));
+            } else {
+                termClauses.add(parseTerms(field, op, value, expression));
+            }
+        }
+
+        return new IndexFilter(Collections.unmodifiableList(termClauses), dates.from, dates.to);
+    }
+
+    List<List<String>> termClauses() {
+        return termClauses;
+    }
+
+    /** Inclusive lower bound on the record date. */
+    Optional<LocalDate> from() {
+        return Optional.ofNullable(from);
+    }
+
+    /** Inclusive upper bound on the record date. */
+    Optional<LocalDate> to() {
+        return Optional.ofNullable(to);
+    }
+
+    private static List<String> parseTerms(String field, String op, String value, String expression) {
+        if (!MetadataIndex.FIELDS.contains(field)) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown field '%s' in filter, expected %s or one of %s: %s",
+                    field, DATE_FIELD, new TreeSet<>(MetadataIndex.FIELDS), expression));
+        }
+        if (!op.equals("=")) {
+            throw new IllegalArgumentException(String.format("Operator %s is only supported for %s: %s",
+                    op, DATE_FIELD, expression));
+        }
+
+        return Stream.of(value.split("\\|"))
+                .map(v -> MetadataIndex.term(field, v))
+                .collect(Collectors.toList());
+    }
+
+    private static LocalDate parseDate(String value, String expression) {
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("Invalid date '%s' in filter: %s", value, expression),
+                    e);
+        }
+    }
+
+    /** Intersection of the date clauses seen so far; a null bound is unrestricted. */
+    private static final class DateRange {
+        private LocalDate from;
+        private LocalDate to;
+
+        void restrict(String op, LocalDate date) {
+            if (op.contains(">") || op.equals("=")) {
+                from = later(from, op.equals(">") ? date.plusDays(1) : date);
+            }
+            if (op.contains("<") || op.equals("=")) {
+                to = earlier(to, op.equals("<") ? date.minusDays(1) : date);
+            }
+        }
+
+        private static LocalDate later(LocalDate bound, LocalDate date) {
+            return bound == null || date.isAfter(bound) ? date : bound;
+        }
+
+        private static LocalDate earlier(LocalDate bound, LocalDate date) {
+            return bound == null || date.isBefore(bound) ? date : bound;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Read side of the on-disk metadata index written by {@link MetadataIndexWriter}: inverted postings for keywords and
+ * categorical fields, a sorted (date, id) table for date ranges, and per-id records holding what the downloader needs
+ * (dimensions and thumbnail url) so that matching images can be queued without scanning the metadata csvs.
+ */
+public final class MetadataIndex implements Closeable {
+
+    /** Fields with postings in the index, as written by the metadata scraper. */
+    public static final Set<String> FIELDS =
+            Set.of("branch", "category", "city", "country", "keywords", "state", "unit_name");
+
+    static final int MAGIC = 0x44564958; // "DVIX"
+    static final int VERSION = 1;
+
+    private static final int FOOTER_SIZE = 3 * Long.BYTES;
+    private static final int DATE_ENTRY_SIZE = Long.BYTES;
+
+    private final RandomAccessFile file;
+    private final long datesOffset;
+    private final Map<String, Long> directory;
+    private final int[] recordIds;
+    private final long[] recordOffsets;
+
+    private MetadataIndex(RandomAccessFile file) throws IOException {
+        this.file = file;
+
+        file.seek(0);
+        if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+            throw new IOException("Unrecognized metadata index format");
+        }
+
+        file.seek(file.length() - FOOTER_SIZE);
+        this.datesOffset = file.readLong();
+        long recordTableOffset = file.readLong();
+        long directoryOffset = file.readLong();
+
+        DataInputStream in = streamAt(recordTableOffset);
+        int numRecords = in.readInt();
+        this.recordIds = new int[numRecords];
+        this.recordOffsets = new long[numRecords];
+        for (int i = 0; i < numRecords; i++) {
+            recordIds[i] = in.readInt();
+            recordOffsets[i] = in.readLong();
+        }
+
+        in = streamAt(directoryOffset);
+        int numTerms = in.readInt();
+        this.directory = new HashMap<>(numTerms * 2);
+        for (int i = 0; i < numTerms; i++) {
+            directory.put(in.readUTF(), in.readLong());
+        }
+    }
+
+    public static MetadataIndex open(Path indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile.toFile(), "r");
+        try {
+            return new MetadataIndex(file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Normalized form of a field value, as stored in the postings. */
+    public static String term(String field, String value) {
+        return field.toLowerCase(Locale.ROOT) + "=" + value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static long dateEntry(LocalDate date, int id) {
+        return (date.toEpochDay() << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    public int size() {
+        return recordIds.length;
+    }
+
+    /** Returns the sorted ids of all records matching the filter. */
+    public synchronized int[] resolve(IndexFilter filter) throws IOException {
+        int[] result = null;
+
+        for (List<String> alternatives : filter.termClauses()) {
+            int[] matches = new int[0];
+            for (String term : alternatives) {
+                matches = union(matches, postings(term));
+            }
+            result = result == null ? matches : intersect(result, matches);
+        }
+
+        if (filter.from().isPresent() || filter.to().isPresent()) {
+            int[] matches = dateRange(filter.from().orElse(LocalDate.MIN), filter.to().orElse(LocalDate.MAX));
+            result = result == null ? matches : intersect(result, matches);
+        }
+
+        return result == null ? recordIds.clone() : result;
+    }
+
+    public synchronized Optional<Entry> entry(int id) throws IOException {
+        int index = Arrays.binarySearch(recordIds, id);
+        if (index < 0) {
+            return Optional.empty();
+        }
+
+        file.seek(recordOffsets[index]);
+        int recordId = file.readInt();
+        int height = file.readInt();
+        int width = file.readInt();
+        String thumbnail = file.readUTF();
+        return Optional.of(new Entry(recordId, height, width, thumbnail.isEmpty() ? null : thumbnail));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private int[] postings(String term) throws IOException {
+        Long offset = directory.get(term);
+        if (offset == null) {
+            return new int[0];
+        }
+
+        DataInputStream in = streamAt(offset);
+        int[] ids = new int[in.readInt()];
+        int previous = 0;
+        for (int i = 0; i < ids.length; i++) {
+            previous += readVarInt(in);
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    private int[] dateRange(LocalDate from, LocalDate to) throws IOException {
+        file.seek(datesOffset);
+        int numDates = file.readInt();
+        long first = datesOffset + Integer.BYTES;
+
+        int start = lowerBound(first, numDates, dateEntry(clamp(from), 0));
+        int end = lowerBound(first, numDates, dateEntry(clamp(to).plusDays(1), 0));
+        if (end <= start) {
+            return new int[0];
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate((end - start) * DATE_ENTRY_SIZE);
+        file.getChannel().read(entries, first + (long) start * DATE_ENTRY_SIZE);
+        entries.flip();
+
+        int[] ids = new int[end - start];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (int) entries.getLong();
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private int lowerBound(long first, int count, long key) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            file.seek(first + (long) mid * DATE_ENTRY_SIZE);
+            if (file.readLong() < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private DataInputStream streamAt(long offset) throws IOException {
+        // Deliberately not closed, as that would close the underlying file
+        file.seek(offset);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+    }
+
+    // Keeps (epoch day << 32) within a long for open-ended ranges
+    private static LocalDate clamp(LocalDate date) {
+        if (date.getYear() < 1) {
+            return LocalDate.of(1, 1, 1);
+        } else if (date.getYear() > 9999) {
+            return LocalDate.of(9999, 12, 31);
+        }
+        return date;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = in.readByte();
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    private static int[] union(int[] left, int[] right) {
+        return IntStream.concat(Arrays.stream(left), Arrays.stream(right)).sorted().distinct().toArray();
+    }
+
+    private static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int size = 0;
+        int leftIndex = 0;
+        int rightIndex = 0;
+        while (leftIndex < left.length && rightIndex < right.length) {
+            if (left[leftIndex] < right[rightIndex]) {
+                leftIndex++;
+            } else if (left[leftIndex] > right[rightIndex]) {
+                rightIndex++;
+            } else {
+                result[size++] = left[leftIndex];
+                leftIndex++;
+                rightIndex++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public static final class Entry {
+        private final int id;
+        private final int height;
+        private final int width;
+        private final String thumbnail;
+
+        private Entry(int id, int height, int width, String thumbnail) {
+            this.id = id;
+            this.height = height;
+            this.width = width;
+            this.thumbnail = thumbnail;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public Optional<String> thumbnail() {
+            return Optional.ofNullable(thumbnail);
+        }
+    }
+}
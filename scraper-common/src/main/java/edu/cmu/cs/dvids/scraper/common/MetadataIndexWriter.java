@@ -0,0 +1,222 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Builds a {@link MetadataIndex}. Records are streamed to disk as they are added while postings and date entries
+ * are accumulated in memory and written out on {@link #close()}, after which the index is atomically moved into
+ * place.
+ */
+public final class MetadataIndexWriter implements Closeable {
+
+    private final Path indexFile;
+    private final Path tmpFile;
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+
+    private final SortedMap<String, IntList> postings = new TreeMap<>();
+    private final IntList recordIds = new IntList();
+    private long[] recordOffsets = new long[1024];
+    private long[] dates = new long[1024];
+    private int numDates = 0;
+
+    private MetadataIndexWriter(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        this.tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        this.counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+        this.out = new DataOutputStream(counter);
+
+        out.writeInt(MetadataIndex.MAGIC);
+        out.writeInt(MetadataIndex.VERSION);
+    }
+
+    public static MetadataIndexWriter create(Path indexFile) throws IOException {
+        return new MetadataIndexWriter(indexFile);
+    }
+
+    /**
+     * Adds a record. Terms should be built with {@link MetadataIndex#term(String, String)}; the date may be null if
+     * the record has none.
+     */
+    public void add(int id, LocalDate date, Collection<String> terms, int height, int width, String thumbnail)
+            throws IOException {
+        if (recordIds.size() == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length * 2);
+        }
+        recordOffsets[recordIds.size()] = counter.position;
+        recordIds.add(id);
+
+        out.writeInt(id);
+        out.writeInt(height);
+        out.writeInt(width);
+        out.writeUTF(thumbnail == null ? "" : thumbnail);
+
+        for (String term : terms) {
+            postings.computeIfAbsent(term, t -> new IntList()).add(id);
+        }
+
+        if (date != null) {
+            if (numDates == dates.length) {
+                dates = Arrays.copyOf(dates, dates.length * 2);
+            }
+            dates[numDates++] = MetadataIndex.dateEntry(date, id);
+        }
+    }
+
+    /**
+     * Writes the postings, dates and directory and moves the index into place. If this fails the partial index is
+     * deleted and any index previously written to the same path is left as it was.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+            Files.move(tmpFile, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /** Discards the partial index; any index previously written to the same path is left as it was. */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The index is being discarded anyway
+        } finally {
+            tmpFile.toFile().delete();
+        }
+    }
+
+    private void finish() throws IOException {
+        try {
+            Map<String, Long> directory = new TreeMap<>();
+            for (Map.Entry<String, IntList> posting : postings.entrySet()) {
+                directory.put(posting.getKey(), counter.position);
+                int[] ids = posting.getValue().sortedUnique();
+                out.writeInt(ids.length);
+                int previous = 0;
+                for (int id : ids) {
+                    writeVarInt(id - previous);
+                    previous = id;
+                }
+            }
+
+            long datesOffset = counter.position;
+            long[] sortedDates = Arrays.copyOf(dates, numDates);
+            Arrays.sort(sortedDates);
+            out.writeInt(sortedDates.length);
+            for (long date : sortedDates) {
+                out.writeLong(date);
+            }
+
+            // Pack (id, insertion index) so the record table can be sorted by id
+            long recordTableOffset = counter.position;
+            long[] byId = new long[recordIds.size()];
+            for (int i = 0; i < byId.length; i++) {
+                byId[i] = ((long) recordIds.get(i) << 32) | i;
+            }
+            Arrays.sort(byId);
+            out.writeInt(byId.length);
+            for (long entry : byId) {
+                out.writeInt((int) (entry >>> 32));
+                out.writeLong(recordOffsets[(int) entry]);
+            }
+
+            long directoryOffset = counter.position;
+            out.writeInt(directory.size());
+            for (Map.Entry<String, Long> entry : directory.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+
+            out.writeLong(datesOffset);
+            out.writeLong(recordTableOffset);
+            out.writeLong(directoryOffset);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] sortedUnique() {
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return Arrays.stream(sorted).distinct().toArray();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long position = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            out.write(value);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            position += length;
+        }
+    }
+}
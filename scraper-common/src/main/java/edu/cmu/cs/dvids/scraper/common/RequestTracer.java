@@ -0,0 +1,381 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records sampled per-request events (endpoint, status, bytes, latency, attempt) to a ring of binary trace files.
+ * {@link #record} never blocks: sampled events go onto a bounded queue and are dropped if the queue is full. A daemon
+ * thread writes the queue to {@code <name>.<n>.trace}, moving to the next file of the ring once the current one is
+ * full. Failed requests are always recorded regardless of the sample rate.
+ *
+ * <p>Each file starts with a magic number, a version, the epoch millis it was opened at and the sample rate, so that
+ * readers can scale sampled successes back up to the number of requests. It is followed by tagged records. An
+ * endpoint record assigns a file-local id to an endpoint name. An event record holds varints for the offset from the
+ * file's start time, the endpoint id, the status + 1, the attempt, the byte count and the latency in microseconds,
+ * followed by a flags byte.
+ */
+public final class RequestTracer implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestTracer.class);
+
+    /** Status recorded for requests that failed before a status code was received, and for disk operations. */
+    public static final int NO_STATUS = -1;
+
+    static final int MAGIC = 0x44565452; // "DVTR"
+    static final int VERSION = 2;
+    static final String SUFFIX = ".trace";
+
+    private static final int TAG_ENDPOINT = 0;
+    private static final int TAG_EVENT = 1;
+    private static final int FLAG_FAILED = 1;
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int DRAIN_BATCH = 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long MAX_FILE_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_FILES = 8;
+
+    // Query parameters whose values must never reach a log line or trace file
+    private static final Pattern SECRET_PARAMS = Pattern.compile("([?&](?:api_key|apikey|key|token)=)[^&#]*");
+
+    private static final RequestTracer DISABLED = new RequestTracer(null, null, 0);
+
+    private final Path dir;
+    private final String name;
+    private final double sampleRate;
+    private final BlockingQueue<Event> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    private volatile boolean closed = false;
+
+    // Only accessed by the writer thread
+    private final Map<String, Integer> endpointIds = new HashMap<>();
+    private DataOutputStream out;
+    private long fileStartMillis;
+    private int fileIndex = 0;
+
+    private RequestTracer(Path dir, String name, double sampleRate) {
+        this.dir = dir;
+        this.name = name;
+        this.sampleRate = sampleRate;
+
+        if (dir == null) {
+            this.queue = null;
+            this.writer = null;
+        } else {
+            this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            this.writer = new Thread(this::drain, "request-tracer-" + name);
+            writer.setDaemon(true);
+        }
+    }
+
+    /**
+     * Starts tracing to {@code <dir>/<name>.<n>.trace}, replacing the files of any previous run with the same name.
+     * Successful requests are kept with probability {@code sampleRate}.
+     */
+    public static RequestTracer open(Path dir, String name, double sampleRate) throws IOException {
+        Preconditions.checkArgument(sampleRate >= 0 && sampleRate <= 1, "Sample rate %s is not in [0, 1]",
+                sampleRate);
+        Files.createDirectories(dir);
+        for (Path file : traceFiles(dir, name + ".")) {
+            Files.delete(file);
+        }
+
+        RequestTracer tracer = new RequestTracer(dir, name, sampleRate);
+        tracer.rotate();
+        tracer.writer.start();
+        return tracer;
+    }
+
+    /** Returns a tracer that records nothing. */
+    public static RequestTracer disabled() {
+        return DISABLED;
+    }
+
+    /** Replaces the values of secret query parameters (e.g. {@code api_key}) in a url before it is logged. */
+    public static String redact(Object url) {
+        return SECRET_PARAMS.matcher(String.valueOf(url)).replaceAll("$1REDACTED");
+    }
+
+    /**
+     * Records a request (or disk operation) that took {@code latencyNanos}. Endpoints should be a small fixed set of
+     * names rather than urls, both to keep the files compact and to keep secrets out of them.
+     */
+    public void record(String endpoint, int status, long bytes, long latencyNanos, int attempt, boolean failed) {
+        if (queue == null || closed) {
+            return;
+        }
+
+        if (!failed && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        Event event = new Event(
+                System.currentTimeMillis(), endpoint, status, bytes, latencyNanos, attempt, failed, sampleRate);
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Stops accepting events and waits for the queued ones to be written. */
+    @Override
+    public void close() throws IOException {
+        if (queue == null || closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for request trace writer", e);
+        }
+
+        if (dropped.get() > 0) {
+            log.warn("Dropped {} request trace events because the writer fell behind", dropped.get());
+        }
+    }
+
+    /** Reads every event of every trace file in {@code dir}, in no particular order. */
+    public static void readAll(Path dir, Consumer<Event> consumer) throws IOException {
+        for (Path file : traceFiles(dir, "")) {
+            read(file, consumer);
+        }
+    }
+
+    private static List<Path> traceFiles(Path dir, String prefix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private static void read(Path file, Consumer<Event> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a request trace file: " + file);
+            }
+
+            long startMillis = in.readLong();
+            double sampleRate = in.readDouble();
+            List<String> endpoints = new ArrayList<>();
+            while (true) {
+                int tag = in.read();
+                if (tag == -1) {
+                    return;
+                }
+
+                // The writer may have been killed mid-record, in which case the tail is skipped
+                try {
+                    if (tag == TAG_ENDPOINT) {
+                        endpoints.add(in.readUTF());
+                    } else if (tag == TAG_EVENT) {
+                        long timestamp = startMillis + readVarLong(in);
+                        String endpoint = endpoints.get((int) readVarLong(in));
+                        int status = (int) readVarLong(in) - 1;
+                        int attempt = (int) readVarLong(in);
+                        long bytes = readVarLong(in);
+                        long latencyNanos = TimeUnit.MICROSECONDS.toNanos(readVarLong(in));
+                        boolean failed = (in.readByte() & FLAG_FAILED) != 0;
+                        consumer.accept(new Event(
+                                timestamp, endpoint, status, bytes, latencyNanos, attempt, failed, sampleRate));
+                    } else {
+                        throw new IOException(String.format("Unexpected record tag %s in %s", tag, file));
+                    }
+                } catch (EOFException e) {
+                    log.warn("Request trace file {} ends with a truncated record", file);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>(DRAIN_BATCH);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Event first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    out.flush();
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, DRAIN_BATCH - 1);
+                for (Event event : batch) {
+                    write(event);
+                }
+                batch.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Request trace writer failed; no further events will be recorded", e);
+            closed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Failed to close request trace file", e);
+            }
+        }
+    }
+
+    private void write(Event event) throws IOException {
+        if (out.size() >= MAX_FILE_BYTES) {
+            out.close();
+            fileIndex = (fileIndex + 1) % MAX_FILES;
+            rotate();
+        }
+
+        Integer endpointId = endpointIds.get(event.endpoint);
+        if (endpointId == null) {
+            endpointId = endpointIds.size();
+            endpointIds.put(event.endpoint, endpointId);
+            out.writeByte(TAG_ENDPOINT);
+            out.writeUTF(event.endpoint);
+        }
+
+        out.writeByte(TAG_EVENT);
+        writeVarLong(Math.max(0, event.timestampMillis - fileStartMillis));
+        writeVarLong(endpointId);
+        writeVarLong(event.status + 1);
+        writeVarLong(event.attempt);
+        writeVarLong(event.bytes);
+        writeVarLong(TimeUnit.NANOSECONDS.toMicros(event.latencyNanos));
+        out.writeByte(event.failed ? FLAG_FAILED : 0);
+    }
+
+    private void rotate() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve(name + "." + fileIndex + SUFFIX)), 64 * 1024));
+        endpointIds.clear();
+        fileStartMillis = System.currentTimeMillis();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(fileStartMillis);
+        out.writeDouble(sampleRate);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte octet = in.readByte();
+            value |= (long) (octet & 0x7F) << shift;
+            if ((octet & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in request trace");
+    }
+
+    public static final class Event {
+        private final long timestampMillis;
+        private final String endpoint;
+        private final int status;
+        private final long bytes;
+        private final long latencyNanos;
+        private final int attempt;
+        private final boolean failed;
+        private final double sampleRate;
+
+        private Event(
+                long timestampMillis,
+                String endpoint,
+                int status,
+                long bytes,
+                long latencyNanos,
+                int attempt,
+                boolean failed,
+                double sampleRate) {
+            this.timestampMillis = timestampMillis;
+            this.endpoint = endpoint;
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyNanos = latencyNanos;
+            this.attempt = attempt;
+            this.failed = failed;
+            this.sampleRate = sampleRate;
+        }
+
+        public long timestampMillis() {
+            return timestampMillis;
+        }
+
+        public String endpoint() {
+            return endpoint;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public long latencyNanos() {
+            return latencyNanos;
+        }
+
+        public int attempt() {
+            return attempt;
+        }
+
+        public boolean failed() {
+            return failed;
+        }
+
+        /** Number of requests this event stands for: failures are always recorded, successes only when sampled. */
+        public double weight() {
+            return failed || sampleRate <= 0 ? 1 : 1 / sampleRate;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only archive of raw api response bodies. Each body is stored as its own gzip member in the data file, and a
+ * tab-separated index file alongside it maps each key (e.g. the search window and page) to the member's offset and
+ * length. Bodies are written to the data file before their index line, so a crash can at worst leave unindexed bytes
+ * at the end of the data file. Once everything built from an archive has been committed, the writer can
+ * {@link #markComplete} it, so that readers can tell it apart from an archive whose writer failed partway through.
+ */
+public final class ResponseArchive implements Closeable {
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPLETE_SUFFIX = ".complete";
+
+    private final FileChannel data;
+    private final Writer index;
+    private long position;
+
+    private ResponseArchive(FileChannel data, Writer index) throws IOException {
+        this.data = data;
+        this.index = index;
+        this.position = data.size();
+    }
+
+    /** Opens the archive for appending, creating it if it does not exist. */
+    public static ResponseArchive open(Path dataFile) throws IOException {
+        FileChannel data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        try {
+            return new ResponseArchive(data, Files.newBufferedWriter(indexFile(dataFile), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /** Deletes the archive's data and index files and its completion marker, if present. */
+    public static void delete(Path dataFile) throws IOException {
+        // The marker goes first, so that an interrupted delete never leaves a marked partial archive
+        Files.deleteIfExists(completeFile(dataFile));
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(indexFile(dataFile));
+    }
+
+    /** Records that the closed archive at {@code dataFile} holds every response it was opened for. */
+    public static void markComplete(Path dataFile) throws IOException {
+        Files.write(completeFile(dataFile), new byte[0]);
+    }
+
+    public static boolean isComplete(Path dataFile) {
+        return Files.exists(completeFile(dataFile));
+    }
+
+    public synchronized void append(String key, String body) throws IOException {
+        if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Archive keys may not contain tabs or newlines: " + key);
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            position += data.write(buffer);
+        }
+
+        index.write(key + '\t' + offset + '\t' + (position - offset) + '\n');
+        index.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            data.close();
+        }
+    }
+
+    private static Path indexFile(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + INDEX_SUFFIX);
+    }
+
+    private static Path completeFile(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + COMPLETE_SUFFIX);
+    }
+
+    /** Random and sequential access to an archive written by {@link ResponseArchive}. */
+    public static final class Reader implements Closeable {
+        private final FileChannel data;
+        private final Map<String, long[]> entries;
+
+        private Reader(FileChannel data, Map<String, long[]> entries) {
+            this.data = data;
+            this.entries = entries;
+        }
+
+        public static Reader open(Path dataFile) throws IOException {
+            Map<String, long[]> entries = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(indexFile(dataFile), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                // A crash while appending can leave a partial last line
+                if (fields.length == 3) {
+                    entries.put(fields[0], new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+                }
+            }
+            return new Reader(FileChannel.open(dataFile, StandardOpenOption.READ), entries);
+        }
+
+        /** Keys in the order their responses were archived. */
+        public List<String> keys() {
+            return Collections.unmodifiableList(new ArrayList<>(entries.keySet()));
+        }
+
+        public Optional<String> read(String key) throws IOException {
+            long[] entry = entries.get(key);
+            if (entry == null) {
+                return Optional.empty();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) entry[1]);
+            while (buffer.hasRemaining()) {
+                if (data.read(buffer, entry[0] + buffer.position()) < 0) {
+                    throw new IOException("Archive truncated while reading " + key);
+                }
+            }
+
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(buffer.array()))) {
+                return Optional.of(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The OpenDiamond Platform for Interactive Search
+ *
+ * Copyright (c) 2020 Carnegie Mellon University
+ * All rights reserved.
+ *
+ * This software is distributed under the terms of the Eclipse Public
+ * License, Version 1.0 which can be found in the file named LICENSE.
+ * ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+ * RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT.
+ */
+
+package edu.cmu.cs.dvids.scraper.common;
+
+import com.google.common.collect.Maps;
+import io.dropwizard.Application;
+import io.dropwizard.Configuration;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Summarizes, per endpoint, the request trace files written by {@link RequestTracer} to the configured directory. */
+public final class TraceSummaryCommand<T extends Configuration> extends ConfiguredCommand<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceSummaryCommand.class);
+
+    private final Application<T> application;
+    private final Function<T, Optional<String>> traceDirFn;
+
+    public TraceSummaryCommand(Application<T> application, Function<T, Optional<String>> traceDirFn) {
+        super("trace-summary", "Summarizes sampled request traces per endpoint");
+        this.application = application;
+        this.traceDirFn = traceDirFn;
+    }
+
+    @Override
+    protected Class<T> getConfigurationClass() {
+        return application.getConfigurationClass();
+    }
+
+    @Override
+    protected void run(Bootstrap<T> bootstrap, Namespace namespace, T configuration) throws Exception {
+        String traceDir = traceDirFn.apply(configuration)
+                .orElseThrow(() -> new IllegalArgumentException("No trace-dir is configured"));
+        SortedMap<String, EndpointSummary> summaries = new TreeMap<>();
+        RequestTracer.readAll(Paths.get(traceDir), event ->
+                summaries.computeIfAbsent(event.endpoint(), endpoint -> new EndpointSummary()).add(event));
+
+        if (summaries.isEmpty()) {
+            log.info("No request trace events found in {}", traceDir);
+            return;
+        }
+
+        // Successes are sampled and failures are not, so counts are scaled by each event's weight and the two are
+        // never pooled into the same latency distribution
+        for (Map.Entry<String, EndpointSummary> entry : summaries.entrySet()) {
+            EndpointSummary summary = entry.getValue();
+            log.info("{}: ~{} requests from {} sampled events, ~{} failed, ~{} retries, statuses {}",
+                    entry.getKey(),
+                    Math.round(summary.succeeded.weight + summary.failed.weight),
+                    summary.succeeded.count + summary.failed.count,
+                    Math.round(summary.failed.weight),
+                    Math.round(summary.retries),
+                    Maps.transformValues(summary.statuses, Math::round));
+            summary.succeeded.report(entry.getKey() + " succeeded");
+            summary.failed.report(entry.getKey() + " failed");
+        }
+    }
+
+    private static final class EndpointSummary {
+        private final SortedMap<Integer, Double> statuses = new TreeMap<>();
+        private final OutcomeSummary succeeded = new OutcomeSummary();
+        private final OutcomeSummary failed = new OutcomeSummary();
+        private double retries = 0;
+
+        private void add(RequestTracer.Event event) {
+            (event.failed() ? failed : succeeded).add(event);
+            if (event.attempt() > 1) {
+                retries += event.weight();
+            }
+            statuses.merge(event.status(), event.weight(), Double::sum);
+        }
+    }
+
+    private static final class OutcomeSummary {
+        private long[] latencyNanos = new long[1024];
+        private double[] weights = new double[1024];
+        private int count = 0;
+        private double weight = 0;
+        private double bytes = 0;
+
+        private void add(RequestTracer.Event event) {
+            if (count == latencyNanos.length) {
+                latencyNanos = Arrays.copyOf(latencyNanos, count * 2);
+                weights = Arrays.copyOf(weights, count * 2);
+            }
+            latencyNanos[count] = event.latencyNanos();
+            weights[count] = event.weight();
+            count++;
+
+            weight += event.weight();
+            bytes += event.weight() * event.bytes();
+        }
+
+        private void report(String outcome) {
+            if (count == 0) {
+                return;
+            }
+
+            Integer[] order = new Integer[count];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, Comparator.comparingLong(i -> latencyNanos[i]));
+
+            log.info("{}: {} bytes/request, latency p50 {} ms, p95 {} ms, p99 {} ms, max {} ms",
+                    outcome,
+                    Math.round(bytes / weight),
+                    percentileMillis(order, 0.50),
+                    percentileMillis(order, 0.95),
+                    percentileMillis(order, 0.99),
+                    TimeUnit.NANOSECONDS.toMillis(latencyNanos[order[count - 1]]));
+        }
+
+        /** Latency of the first event, in latency order, at which the weights reach the percentile of the total. */
+        private long percentileMillis(Integer[] order, double percentile) {
+            double target = percentile * weight;
+            double cumulative = 0;
+            for (int index : order) {
+                cumulative += weights[index];
+                if (cumulative >= target) {
+                    return TimeUnit.NANOSECONDS.toMillis(latencyNanos[index]);
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(latencyNanos[order[count - 1]]);
+        }
+    }
+}